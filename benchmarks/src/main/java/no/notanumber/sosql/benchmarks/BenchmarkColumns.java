@@ -0,0 +1,72 @@
+package no.notanumber.sosql.benchmarks;
+
+import no.notanumber.sosql.ColumnDefs;
+import no.notanumber.sosql.ColumnType;
+import no.notanumber.sosql.DatabaseColumn;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The person table, plus a generated schema with as many columns as the system property
+ * sosql.benchmark.columns says, ten to a table. Table tN has a foreign key to table t(N-1)/2,
+ * so the tables form a binary tree, and every fifth table is linked to its parent through a many-to-many table as well.
+ * The property has to be set before ColumnHelper is loaded, which the benchmarks do in their setup.
+ */
+public class BenchmarkColumns {
+
+    public static final String COLUMN_COUNT = "sosql.benchmark.columns";
+    public static final int COLUMNS_PER_TABLE = 10;
+
+    public static final DatabaseColumn person_id = new DatabaseColumn("person_id", Long.TYPE, "person", ColumnType.PrimaryKey);
+    public static final DatabaseColumn person_name = new DatabaseColumn("person_name", String.class, "person");
+    public static final DatabaseColumn person_age = new DatabaseColumn("person_age", Integer.TYPE, "person");
+    public static final DatabaseColumn person_active = new DatabaseColumn("person_active", Boolean.TYPE, "person");
+    public static final DatabaseColumn person_born = new DatabaseColumn("person_born", LocalDate.class, "person");
+    public static final DatabaseColumn person_score = new DatabaseColumn("person_score", Long.class, "person");
+
+    public static final List<DatabaseColumn> generated = generate(Integer.getInteger(COLUMN_COUNT, COLUMNS_PER_TABLE));
+
+    @ColumnDefs
+    public static List<DatabaseColumn> allColumns() {
+        List<DatabaseColumn> all = new ArrayList<>(Arrays.asList(person_id, person_name, person_age, person_active, person_born, person_score));
+        all.addAll(generated);
+        return all;
+    }
+
+    public static int tableCount() {
+        return Math.max(1, Integer.getInteger(COLUMN_COUNT, COLUMNS_PER_TABLE) / COLUMNS_PER_TABLE);
+    }
+
+    public static DatabaseColumn column(int table, int column) {
+        return generated.get(table * COLUMNS_PER_TABLE + column);
+    }
+
+    private static List<DatabaseColumn> generate(int columnCount) {
+        List<DatabaseColumn> columns = new ArrayList<>();
+        List<DatabaseColumn> manyToMany = new ArrayList<>();
+        int tables = Math.max(1, columnCount / COLUMNS_PER_TABLE);
+        for (int t = 0; t < tables; t++) {
+            String table = "t" + t;
+            String parent = "t" + (t - 1) / 2;
+            columns.add(new DatabaseColumn(table + "_id", Long.TYPE, table, ColumnType.PrimaryKey));
+            if (t == 0) {
+                columns.add(new DatabaseColumn(table + "_c1", Long.class, table));
+            } else {
+                columns.add(new DatabaseColumn(table + "_" + parent + "_id", Long.class, table, ColumnType.ForeignKey, parent));
+            }
+            for (int c = 2; c < COLUMNS_PER_TABLE; c++) {
+                columns.add(new DatabaseColumn(table + "_c" + c, c % 2 == 0 ? String.class : Integer.class, table));
+            }
+            if (t > 0 && t % 5 == 0) {
+                String link = table + "_" + parent;
+                manyToMany.add(new DatabaseColumn(link + "_" + table, Long.TYPE, link, ColumnType.ForeignKey, table));
+                manyToMany.add(new DatabaseColumn(link + "_" + parent, Long.TYPE, link, ColumnType.ForeignKey, parent));
+            }
+        }
+        columns.addAll(manyToMany);
+        return columns;
+    }
+}
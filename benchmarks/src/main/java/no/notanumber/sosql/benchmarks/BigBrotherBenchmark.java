@@ -0,0 +1,54 @@
+package no.notanumber.sosql.benchmarks;
+
+import no.notanumber.sosql.BigBrother;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Registering spies and informing them, with many spies already registered on a thousand rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BigBrotherBenchmark {
+
+    static final int ROWS = 1000;
+
+    @Param({"1000", "100000"})
+    public int spies;
+
+    private final List<BigBrother.Spy> registered = new ArrayList<>();
+    private Person[] persons;
+    private int next;
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        persons = new Person[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            persons[i] = new Person();
+            persons[i].person_id = i;
+        }
+        for (int i = 0; i < spies; i++) {
+            BigBrother.Spy spy = blackhole::consume;
+            registered.add(spy);
+            BigBrother.spyOn(persons[i % ROWS], spy);
+        }
+    }
+
+    @Benchmark
+    public void spyOn(Blackhole blackhole) {
+        BigBrother.spyOn(persons[next++ % ROWS], blackhole::consume);
+    }
+
+    @Benchmark
+    public void informAllAgents() {
+        BigBrother.informAllAgents(persons[next++ % ROWS]);
+    }
+}
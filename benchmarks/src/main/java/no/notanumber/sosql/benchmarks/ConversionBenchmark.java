@@ -0,0 +1,62 @@
+package no.notanumber.sosql.benchmarks;
+
+import no.notanumber.sosql.DB;
+import no.notanumber.sosql.DatabaseColumn;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Converting java values to statement parameters, and result set values back to java values.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    enum Colour { RED, GREEN }
+
+    private final List<Object> params = asList(42L, "text", 7, true, LocalDate.of(2020, 2, 29), LocalDateTime.of(2020, 2, 29, 12, 0), Colour.GREEN, new byte[]{1, 2, 3}, null);
+    private final List<DatabaseColumn> columns = asList(BenchmarkColumns.person_id, BenchmarkColumns.person_name, BenchmarkColumns.person_age,
+            BenchmarkColumns.person_active, BenchmarkColumns.person_born, BenchmarkColumns.person_score);
+    private PreparedStatement stmt;
+    private ResultSet rs;
+
+    @Setup
+    public void setUp() throws SQLException {
+        stmt = StubJdbc.statement(RowMappingBenchmark.COLUMNS, new Object[0][]);
+        rs = StubJdbc.resultSet(RowMappingBenchmark.COLUMNS, new Object[][]{{1L, "name", 30, "T", 19900101, null}});
+        rs.next();
+    }
+
+    @Benchmark
+    public void addParameters() {
+        DB.addParameters(stmt, params);
+    }
+
+    @Benchmark
+    public void getValueFromRS(Blackhole blackhole) throws Exception {
+        for (int i = 0; i < columns.size(); i++) {
+            blackhole.consume(DB.getValueFromRS(rs, i + 1, columns.get(i)));
+        }
+    }
+
+    @Benchmark
+    public void getValueFromRSByName(Blackhole blackhole) throws Exception {
+        for (DatabaseColumn column : columns) {
+            blackhole.consume(DB.getValueFromRS(rs, column));
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package no.notanumber.sosql.benchmarks;
+
+import no.notanumber.sosql.Column;
+
+import java.time.LocalDate;
+
+public class Person {
+
+    @Column(columnName = "person_id")
+    public long person_id;
+
+    @Column(columnName = "person_name")
+    public String person_name;
+
+    @Column(columnName = "person_age")
+    public int person_age;
+
+    @Column(columnName = "person_active")
+    public boolean person_active;
+
+    @Column(columnName = "person_born")
+    public LocalDate person_born;
+
+    @Column(columnName = "person_score")
+    public Long person_score;
+}
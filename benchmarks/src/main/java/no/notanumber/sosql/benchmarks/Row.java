@@ -0,0 +1,21 @@
+package no.notanumber.sosql.benchmarks;
+
+import no.notanumber.sosql.Column;
+
+/**
+ * Maps the first columns of the root table of the generated schema.
+ */
+public class Row {
+
+    @Column(columnName = "t0_id")
+    public long t0_id;
+
+    @Column(columnName = "t0_c1")
+    public Long t0_c1;
+
+    @Column(columnName = "t0_c2")
+    public String t0_c2;
+
+    @Column(columnName = "t0_c3")
+    public Integer t0_c3;
+}
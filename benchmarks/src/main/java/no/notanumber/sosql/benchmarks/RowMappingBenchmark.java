@@ -0,0 +1,77 @@
+package no.notanumber.sosql.benchmarks;
+
+import no.notanumber.sosql.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Maps rows of an in-memory result set to Person objects, comparing DB.runSQL with
+ * the reflection loop it used before row mappers were introduced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RowMappingBenchmark {
+
+    static final String[] COLUMNS = {"person_id", "person_name", "person_age", "person_active", "person_born", "person_score"};
+
+    @Param({"1000"})
+    public int rows;
+
+    private Object[][] data;
+    private DB db;
+
+    @Setup
+    public void setUp() {
+        data = new Object[rows][];
+        for (int i = 0; i < rows; i++) {
+            data[i] = new Object[]{(long) i, "person " + i, i % 90, i % 2 == 0 ? "T" : "F", 20000101 + i % 28, i % 3 == 0 ? null : (long) i * 7};
+        }
+        Connection connection = StubJdbc.connection(COLUMNS, data);
+        db = new DB(connection);
+    }
+
+    @Benchmark
+    public List<Person> rowMapper() {
+        return db.runSQL(Person.class, "SELECT * FROM person", Collections.emptyList());
+    }
+
+    @Benchmark
+    public List<Person> reflection() throws Exception {
+        return reflectiveMapping(Person.class, StubJdbc.resultSet(COLUMNS, data));
+    }
+
+    static <T> List<T> reflectiveMapping(Class<T> clazz, ResultSet result) throws Exception {
+        List<String> columnNames = getColumnNames(result);
+        List<T> list = new ArrayList<>();
+        while (result.next()) {
+            T instance = clazz.newInstance();
+            for (Field f : ColumnHelper.getMappedFields(clazz)) {
+                if (columnNames.contains(f.getName())) {
+                    DBFunctions.set(f, instance, DB.getValueFromRS(result, ColumnHelper.getColumn(f)));
+                }
+            }
+            list.add(instance);
+        }
+        return list;
+    }
+
+    private static List<String> getColumnNames(ResultSet result) throws SQLException {
+        List<String> columnNames = new ArrayList<>();
+        for (int i = 1; i <= result.getMetaData().getColumnCount(); i++) {
+            columnNames.add(result.getMetaData().getColumnName(i));
+        }
+        return columnNames;
+    }
+}
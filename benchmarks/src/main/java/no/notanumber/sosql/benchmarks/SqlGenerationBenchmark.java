@@ -0,0 +1,70 @@
+package no.notanumber.sosql.benchmarks;
+
+import no.notanumber.sosql.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+/**
+ * SQL generation for a select on the root table of the generated schema, with a where clause on the last table,
+ * so the tables in between have to be joined in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SqlGenerationBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int columns;
+
+    private Where[] where;
+    private List<OrderBy> orderBy;
+    private Set<String> tables;
+    private Collection<Join> joins;
+    private DB db;
+
+    @Setup
+    public void setUp() {
+        System.setProperty(BenchmarkColumns.COLUMN_COUNT, String.valueOf(columns));
+        int last = BenchmarkColumns.tableCount() - 1;
+        where = new Where[]{new Where(BenchmarkColumns.column(last, 2), "=", "x"), new Where(BenchmarkColumns.column(0, 3), ">", 5)};
+        orderBy = asList(new OrderBy(BenchmarkColumns.column(0, 1)));
+        tables = ColumnHelper.getTables(Row.class, where);
+        joins = DBFunctions.findJoins(tables);
+        db = new DB(StubJdbc.connection(new String[]{"t0_id", "t0_c1", "t0_c2", "t0_c3"}, new Object[0][]));
+    }
+
+    @Benchmark
+    public String makeSelect() {
+        return DBFunctions.makeSelect(Row.class, orderBy, where);
+    }
+
+    @Benchmark
+    public String makeWhere() {
+        return DBFunctions.makeWhere(joins, where);
+    }
+
+    @Benchmark
+    public Collection<Join> findJoins() {
+        return DBFunctions.findJoins(tables);
+    }
+
+    @Benchmark
+    public Set<String> getTables() {
+        return ColumnHelper.getTables(Row.class, where);
+    }
+
+    @Benchmark
+    public List<Row> select() {
+        return db.select(Row.class, new ArrayList<>(orderBy), (Limit) null, where);
+    }
+}
@@ -0,0 +1,86 @@
+package no.notanumber.sosql.benchmarks;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Just enough of JDBC to run so-sql without a database.
+ * Every statement prepared on the stub connection returns the same in-memory rows.
+ */
+public class StubJdbc {
+
+    public static Connection connection(String[] columnNames, Object[][] rows) {
+        return proxy(Connection.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "prepareStatement": return statement(columnNames, rows);
+                case "isClosed": return false;
+                case "getAutoCommit": return false;
+                default: return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    static PreparedStatement statement(String[] columnNames, Object[][] rows) {
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "executeQuery": return resultSet(columnNames, rows);
+                case "executeUpdate": return rows.length;
+                case "getGeneratedKeys": return resultSet(new String[]{"id"}, new Object[][]{{1L}});
+                default: return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    public static ResultSet resultSet(String[] columnNames, Object[][] rows) {
+        List<String> names = Arrays.asList(columnNames);
+        ResultSetMetaData metaData = proxy(ResultSetMetaData.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount": return columnNames.length;
+                case "getColumnName":
+                case "getColumnLabel": return columnNames[(Integer) args[0] - 1];
+                default: return defaultValue(method.getReturnType());
+            }
+        });
+        int[] row = {-1};
+        Object[] last = {null};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next": return ++row[0] < rows.length;
+                case "getMetaData": return metaData;
+                case "findColumn": return names.indexOf(args[0]) + 1;
+                case "wasNull": return last[0] == null;
+                case "close": return null;
+            }
+            if (method.getName().startsWith("get") && args != null && args.length == 1) {
+                int index = args[0] instanceof Integer ? (Integer) args[0] : names.indexOf(args[0]) + 1;
+                last[0] = rows[row[0]][index - 1];
+                if (last[0] == null) return defaultValue(method.getReturnType());
+                if (method.getReturnType() == String.class) return String.valueOf(last[0]);
+                if (method.getReturnType() == int.class) return ((Number) last[0]).intValue();
+                if (method.getReturnType() == long.class) return ((Number) last[0]).longValue();
+                if (method.getReturnType() == double.class) return ((Number) last[0]).doubleValue();
+                return last[0];
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(StubJdbc.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0d;
+        if (type == float.class) return 0f;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        return null;
+    }
+}
@@ -0,0 +1,205 @@
+package no.notanumber.sosql;
+
+import com.mchange.v2.c3p0.ComboPooledDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Runs DB work on an executor, returning CompletableFutures instead of blocking the caller.
+ * <p/>
+ * Work runs in a transaction of its own, committed when the work is done and rolled back if it throws,
+ * and transactional objects called by the work join it. Selects run in read only transactions, so they are read from
+ * a replica if there are any. The transactions belong to the caller's Session, so the caller reads what its async
+ * writes committed. At most maxConcurrent transactions run at once, by default as many as the connection pool holds,
+ * so work waits for a permit rather than for a connection. Share one AsyncDB for the permits to mean anything.
+ * <p/>
+ * Work can not be started inside a Transactional call, as it could neither safely share the caller's connection,
+ * nor see what the caller has not committed. Start it before or after the call, or do it in the call itself.
+ * <p/>
+ * Unless given an executor, work runs on virtual threads when the JVM has them, and on a shared pool of daemon threads otherwise.
+ */
+public class AsyncDB {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncDB.class);
+    static final int DEFAULT_CONCURRENCY = 10;
+
+    private static volatile Executor defaultExecutor;
+    private static volatile boolean virtualThreads;
+
+    private final Executor executor;
+    private final Semaphore permits;
+    private final int maxConcurrent;
+
+    public AsyncDB() {
+        this(getDefaultExecutor());
+    }
+
+    public AsyncDB(Executor executor) {
+        this(executor, poolSize());
+    }
+
+    public AsyncDB(Executor executor, int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("Must allow at least one transaction at a time, not " + maxConcurrent);
+        this.executor = executor;
+        this.maxConcurrent = maxConcurrent;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    public <T> CompletableFuture<List<T>> selectAsync(Class<T> clazz, Where... whereClause) {
+        return inReadOnlyTransaction(db -> db.select(clazz, whereClause));
+    }
+
+    public <T> CompletableFuture<List<T>> selectAsync(Class<T> clazz, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        return inReadOnlyTransaction(db -> db.select(clazz, orderBy, limit, whereClause));
+    }
+
+    public <T> CompletableFuture<Optional<T>> selectOnlyOneAsync(Class<T> clazz, Where... where) {
+        return inReadOnlyTransaction(db -> db.selectOnlyOne(clazz, where));
+    }
+
+    public CompletableFuture<Void> insertAsync(Object... newOnes) {
+        return inTransaction(db -> {
+            db.insert(newOnes);
+            return null;
+        });
+    }
+
+    public <T> CompletableFuture<Void> updateAsync(T updated) {
+        return inTransaction(db -> {
+            db.update(updated);
+            return null;
+        });
+    }
+
+    public <T> CompletableFuture<Void> deleteAsync(Class<T> clazz, Where... where) {
+        return inTransaction(db -> {
+            db.delete(clazz, where);
+            return null;
+        });
+    }
+
+    /**
+     * Calls the object transactionally, as Transactional.transactional would, on the executor.
+     */
+    public <S extends WithDatabase, R> CompletableFuture<R> transactional(S dbActions, Function<S, R> call) {
+        return inTransaction(db -> call.apply(Transactional.transactional(dbActions)));
+    }
+
+    public <R> CompletableFuture<R> inTransaction(Function<DB, R> work) {
+        return submit(false, work);
+    }
+
+    public <R> CompletableFuture<R> inReadOnlyTransaction(Function<DB, R> work) {
+        return submit(true, work);
+    }
+
+    private <R> CompletableFuture<R> submit(boolean readOnly, Function<DB, R> work) {
+        if (Transactional.currentDB().isPresent()) {
+            throw new IllegalStateException("Async work can not be started inside a transaction, start it before or after");
+        }
+        Session session = Session.current();
+        return CompletableFuture.supplyAsync(() -> {
+            permits.acquireUninterruptibly();
+            try {
+                return inOwnTransaction(readOnly ? DB.readOnly() : new DB(), session, work);
+            } finally {
+                permits.release();
+            }
+        }, executor);
+    }
+
+    static <R> R inOwnTransaction(DB db, Session session, Function<DB, R> work) {
+        db.setSession(session);
+        try {
+            R result = Transactional.within(db, work);
+            db.commitAndReleaseConnection();
+            return result;
+        } catch (RuntimeException | Error e) {
+            db.rollback();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes permits for transactions run on the executor without submit, all at once, waiting at most millis for them.
+     */
+    boolean tryReserve(int count, long millis) throws InterruptedException {
+        return permits.tryAcquire(count, millis, TimeUnit.MILLISECONDS);
+    }
+
+    void release(int count) {
+        permits.release(count);
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    public int getMaxConcurrent() {
+        return maxConcurrent;
+    }
+
+    /**
+     * Transactions running now.
+     */
+    public int getRunning() {
+        return maxConcurrent - permits.availablePermits();
+    }
+
+    /**
+     * Work waiting for a transaction to finish before it can start.
+     */
+    public int getWaiting() {
+        return permits.getQueueLength();
+    }
+
+    public static boolean isUsingVirtualThreads() {
+        getDefaultExecutor();
+        return virtualThreads;
+    }
+
+    static Executor getDefaultExecutor() {
+        if (defaultExecutor == null) {
+            synchronized (AsyncDB.class) {
+                if (defaultExecutor == null) defaultExecutor = createDefaultExecutor();
+            }
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Virtual threads came with Java 21, and this is built for Java 8, so they are looked up by reflection.
+     */
+    private static Executor createDefaultExecutor() {
+        try {
+            Executor executor = (Executor) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            virtualThreads = true;
+            return executor;
+        } catch (ReflectiveOperationException e) {
+            log.debug("No virtual threads, running async work on platform threads");
+        }
+        AtomicInteger created = new AtomicInteger();
+        return Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "AsyncDB-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * The number of connections the pool holds, when it is known.
+     */
+    static int poolSize() {
+        DataSource pool = DBFunctions.getDataSource();
+        if (pool instanceof ConnectionPool) return ((ConnectionPool) pool).getMaxConnections();
+        if (pool instanceof ComboPooledDataSource) return ((ComboPooledDataSource) pool).getMaxPoolSize();
+        return DEFAULT_CONCURRENCY;
+    }
+}
@@ -6,43 +6,110 @@ import java.lang.reflect.Field;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class BigBrother {
 
-    public static interface Spy { void suspectAltered(Object suspect); }
+    public static interface Spy {
+        void suspectAltered(Object suspect);
 
-    private static final ConcurrentMap<RowIdentifier, WeakHashMap<Spy, Boolean>> spies = new ConcurrentHashMap<>();
-    private static List<WeakReference<Spy>> spyRefs = Collections.synchronizedList(new ArrayList<>());
-    //Keep track of all weak references created, listen for when they are garbage collected,
-    // so the main spy-map doesn't fill up with keys that have no living spies left.
+        /**
+         * Called instead of suspectAltered when another process altered the row, as ClusterNotifications does not
+         * send the altered object. Ignored unless overridden.
+         */
+        default void rowAlteredElsewhere(RowIdentifier row) {
+        }
+    }
+
+    /**
+     * Told about every row BigBrother is told about, whether anyone spies on it or not.
+     * Observers are held until removed, and are called on the committing thread.
+     * The suspect is null for rows altered by other processes.
+     */
+    public static interface Observer { void rowAltered(RowIdentifier row, Object suspect); }
+
+    private static final List<Observer> observers = new CopyOnWriteArrayList<>();
+    private static volatile NotificationDispatcher dispatcher; //when null, spies are told on the committing thread
+
+    //Spies are held weakly: a spy lives as long as whoever created it keeps it. Each reference knows the row it spies on,
+    // so when its spy is collected it is removed from that row alone, without scanning other rows.
+    private static final ConcurrentMap<RowIdentifier, Set<SpyRef>> spies = new ConcurrentHashMap<>();
     private static final ReferenceQueue<Spy> terminatedSpies = new ReferenceQueue<>();
 
     static {
-        new Thread(() -> {
-                while (!Thread.currentThread().isInterrupted()) {
-                    try {
-                        terminatedSpies.remove();
-                        spyRefs.removeIf(spy -> spy.get() == null);
-                        spies.entrySet().removeIf(entry -> entry.getValue().isEmpty());
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    } catch (Exception e) {
-                        e.printStackTrace();
-                    }
+        Thread cleaner = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    SpyRef terminated = (SpyRef) terminatedSpies.remove();
+                    forget(terminated);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    e.printStackTrace();
                 }
-            }).start();
+            }
+        }, "BigBrother-cleaner");
+        cleaner.setDaemon(true);
+        cleaner.start();
     }
 
     public static Optional<Set<Spy>> getSpies(RowIdentifier key) {
-        if (spies.containsKey(key)) {
-            return Optional.of(spies.get(key).keySet());
-        } else {
-            return Optional.empty();
-        }
+        Set<SpyRef> refs = spies.get(key);
+        if (refs == null) return Optional.empty();
+        Set<Spy> living = Collections.newSetFromMap(new IdentityHashMap<>());
+        refs.forEach(ref -> {
+            Spy spy = ref.get();
+            if (spy != null) living.add(spy);
+        });
+        return Optional.of(living);
     }
 
+    public static void addObserver(Observer observer) {
+        observers.add(observer);
+    }
+
+    public static void removeObserver(Observer observer) {
+        observers.remove(observer);
+    }
+
+    /**
+     * Observers are told at once. Spies are told at once, or handed to the dispatcher when dispatching asynchronously.
+     */
     public static void inform(RowIdentifier rowIdentifier, Object suspect) {
-        getSpies(rowIdentifier).orElse(new HashSet<>()).forEach(spy -> spy.suspectAltered(suspect));
+        observers.forEach(observer -> observer.rowAltered(rowIdentifier, suspect));
+        NotificationDispatcher async = dispatcher;
+        if (async != null) async.dispatch(rowIdentifier, suspect);
+        else tellSpies(rowIdentifier, suspect);
+    }
+
+    /**
+     * Informs about the rows in order, a row altered by several suspects once for each of them.
+     */
+    static void inform(List<Pair<RowIdentifier, Object>> altered) {
+        altered.forEach(row -> inform(row.from, row.to));
+    }
+
+    /**
+     * Tells observers, and spies through rowAlteredElsewhere, about a row altered by another process.
+     * Spies are told on the calling thread.
+     */
+    static void informAlteredElsewhere(RowIdentifier rowIdentifier) {
+        observers.forEach(observer -> observer.rowAltered(rowIdentifier, null));
+        Set<SpyRef> refs = spies.get(rowIdentifier);
+        if (refs == null) return;
+        for (SpyRef ref : refs) {
+            Spy spy = ref.get();
+            if (spy != null) spy.rowAlteredElsewhere(rowIdentifier);
+        }
+    }
+
+    static void tellSpies(RowIdentifier rowIdentifier, Object suspect) {
+        Set<SpyRef> refs = spies.get(rowIdentifier);
+        if (refs == null) return;
+        for (SpyRef ref : refs) {
+            Spy spy = ref.get();
+            if (spy != null) spy.suspectAltered(suspect);
+        }
     }
 
     public static void informAllAgents(Object... suspects) {
@@ -51,16 +118,84 @@ public class BigBrother {
         }
     }
 
+    /**
+     * Tell spies about altered rows on threads of their own, so slow spies don't hold up commits.
+     * With a coalesceMillis of 0 spies are told about every suspect, as when told on the committing thread, but not
+     * necessarily in order. Otherwise spies on a row are told coalesceMillis after it was altered, once, about the last
+     * suspect, however many times the row was altered meanwhile. At most maxPending notifications wait; when full,
+     * further notifications are dropped and counted. Observers are still told on the committing thread.
+     */
+    public static synchronized void dispatchAsynchronously(int threads, int maxPending, long coalesceMillis) {
+        NotificationDispatcher previous = dispatcher;
+        dispatcher = new NotificationDispatcher(threads, maxPending, coalesceMillis);
+        if (previous != null) previous.shutdown(coalesceMillis + 1000);
+    }
+
+    /**
+     * Tell spies on the committing thread, the default. Notifications already pending are delivered first.
+     */
+    public static synchronized void dispatchSynchronously() {
+        NotificationDispatcher previous = dispatcher;
+        dispatcher = null;
+        if (previous != null) previous.shutdown(1000);
+    }
+
+    public static boolean isDispatchingAsynchronously() {
+        return dispatcher != null;
+    }
+
+    /**
+     * Altered rows waiting for their spies to be told.
+     */
+    public static int getPendingNotifications() {
+        NotificationDispatcher async = dispatcher;
+        return async == null ? 0 : async.getPending();
+    }
+
+    public static long getDispatchedNotifications() {
+        NotificationDispatcher async = dispatcher;
+        return async == null ? 0 : async.getDispatched();
+    }
+
+    /**
+     * Notifications collapsed into one already pending for the same row.
+     */
+    public static long getCoalescedNotifications() {
+        NotificationDispatcher async = dispatcher;
+        return async == null ? 0 : async.getCoalesced();
+    }
+
+    /**
+     * Notifications not delivered because too many were pending.
+     */
+    public static long getDroppedNotifications() {
+        NotificationDispatcher async = dispatcher;
+        return async == null ? 0 : async.getDropped();
+    }
+
+    public static long getFailedNotifications() {
+        NotificationDispatcher async = dispatcher;
+        return async == null ? 0 : async.getFailed();
+    }
+
     public static void spyOn(Object suspect, Spy spy) {
         for (RowIdentifier key : findRowsToSpyOn(suspect)) {
-            if (!spies.containsKey(key)) {
-                spies.put(key, new WeakHashMap<>());
-            }
-            spyRefs.add(new WeakReference<>(spy, terminatedSpies));
-            spies.get(key).put(spy, true);
+            //added under the map's lock for the row, so the cleaner can't drop the row's set while a spy is added to it
+            spies.compute(key, (row, refs) -> {
+                Set<SpyRef> living = refs != null ? refs : ConcurrentHashMap.newKeySet();
+                living.add(new SpyRef(spy, row, terminatedSpies));
+                return living;
+            });
         }
     }
 
+    private static void forget(SpyRef terminated) {
+        spies.computeIfPresent(terminated.row, (row, refs) -> {
+            refs.remove(terminated);
+            return refs.isEmpty() ? null : refs;
+        });
+    }
+
     /**
      * Example:
      * findRowsToSpyOn(<child with child_id=42>) would return the
@@ -70,12 +205,13 @@ public class BigBrother {
      *
      */
     public static <T> Collection<RowIdentifier> findRowsToSpyOn(T suspect) {
-        List<RowIdentifier> keys = new ArrayList<>();
         Field pkField = ColumnHelper.getPrimaryKeyField(suspect);
         Object suspectId = DBFunctions.get(pkField, suspect);
         DatabaseColumn pkColumn = ColumnHelper.getColumn(pkField);
+        Collection<DatabaseColumn> incoming = ColumnHelper.incomingReferenceColumns(pkColumn.table);
+        List<RowIdentifier> keys = new ArrayList<>(incoming.size() + 1);
         keys.add(new RowIdentifier(pkColumn, suspectId));
-        ColumnHelper.incomingReferenceColumns(pkColumn.table).forEach(col -> keys.add(new RowIdentifier(col, suspectId)));
+        incoming.forEach(col -> keys.add(new RowIdentifier(col, suspectId)));
         return keys;
     }
 
@@ -95,15 +231,43 @@ public class BigBrother {
         Field pkField = ColumnHelper.getPrimaryKeyField(suspect);
         Object suspectId = DBFunctions.get(pkField, suspect);
         keys.add(new RowIdentifier(ColumnHelper.getColumn(pkField), suspectId));
-        for (Field f : ColumnHelper.getMappedFields(suspect.getClass())){
-            DatabaseColumn col = ColumnHelper.getColumn(f);
+        MappedClass mapped = ColumnHelper.getMappedClass(suspect.getClass());
+        for (int i = 0; i < mapped.fields.size(); i++) {
+            DatabaseColumn col = mapped.columns.get(i);
             if (col.type == ColumnType.ForeignKey){
-                keys.add(new RowIdentifier(col, DBFunctions.get(f, suspect)));
+                keys.add(new RowIdentifier(col, DBFunctions.get(mapped.fields.get(i), suspect)));
             }
         }
         return keys;
     }
 
+    /**
+     * Equal to another reference to the same spy, so a spy spying twice on a row is only told once.
+     */
+    private static class SpyRef extends WeakReference<Spy> {
+        final RowIdentifier row;
+        private final int hash;
+
+        SpyRef(Spy spy, RowIdentifier row, ReferenceQueue<Spy> queue) {
+            super(spy, queue);
+            this.row = row;
+            this.hash = System.identityHashCode(spy);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof SpyRef)) return false;
+            Spy spy = get();
+            return spy != null && spy == ((SpyRef) obj).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
     public static class RowIdentifier {
 
         public final Object value;
@@ -0,0 +1,181 @@
+package no.notanumber.sosql;
+
+import org.postgresql.copy.CopyIn;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.lang.StringUtils.join;
+
+/**
+ * Streams mapped objects into a table with COPY ... FROM STDIN.
+ * Rows are encoded into a small buffer that is handed to the driver whenever it fills up,
+ * so memory use does not depend on the number of rows.
+ */
+class BulkLoader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final byte[] BINARY_SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Connection connection;
+    private final String table;
+    private final CopyFormat format;
+    private final List<Field> fields = new ArrayList<>();
+    private final List<String> columnNames;
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(BUFFER_SIZE * 2);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    int[] sqlTypes; //the columns' java.sql.Types, needed for BINARY
+
+    BulkLoader(Connection connection, Class<?> clazz, String table, CopyFormat format) {
+        this.connection = connection;
+        this.table = table;
+        this.format = format;
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        for (int i = 0; i < mapped.fields.size(); i++) {
+            DatabaseColumn col = mapped.columns.get(i);
+            if (col.table == table && col.type != ColumnType.PrimaryKey) fields.add(mapped.fields.get(i));
+        }
+        this.columnNames = fields.stream().map(f -> ColumnHelper.getColumn(f).columnName).collect(toList());
+    }
+
+    String getSQL() {
+        return "COPY " + table + "(" + join(columnNames, ", ") + ") FROM STDIN" + (format == CopyFormat.BINARY ? " (FORMAT BINARY)" : "");
+    }
+
+    /**
+     * Copies all rows, calling loaded for each of them once it is written. Returns the number of rows copied.
+     */
+    <T> long load(Iterator<T> rows, Consumer<T> loaded) throws SQLException, IOException {
+        if (format == CopyFormat.BINARY) sqlTypes = findColumnTypes();
+        CopyIn copyIn = DBFunctions.getPGConnection(connection).getCopyAPI().copyIn(getSQL());
+        try {
+            writeHeader();
+            while (rows.hasNext()) {
+                T row = rows.next();
+                write(row);
+                loaded.accept(row);
+                if (buffer.size() >= BUFFER_SIZE) flush(copyIn);
+            }
+            writeTrailer();
+            flush(copyIn);
+            return copyIn.endCopy();
+        } finally {
+            if (copyIn.isActive()) copyIn.cancelCopy();
+        }
+    }
+
+    void writeHeader() throws IOException {
+        if (format != CopyFormat.BINARY) return;
+        out.write(BINARY_SIGNATURE);
+        out.writeInt(0);
+        out.writeInt(0);
+    }
+
+    void write(Object row) throws IOException {
+        if (format == CopyFormat.BINARY) writeBinary(row);
+        else writeText(row);
+    }
+
+    void writeTrailer() throws IOException {
+        if (format == CopyFormat.BINARY) out.writeShort(-1);
+    }
+
+    /**
+     * What is written and not yet handed to the driver.
+     */
+    byte[] buffered() {
+        return buffer.toByteArray();
+    }
+
+    private void flush(CopyIn copyIn) throws SQLException {
+        copyIn.writeToCopy(buffer.toByteArray(), 0, buffer.size());
+        buffer.reset();
+    }
+
+    private void writeText(Object row) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < fields.size(); i++) {
+            if (i > 0) line.append('\t');
+            Object value = DB.toDatabaseValue(DBFunctions.get(fields.get(i), row));
+            if (value == null) {
+                line.append("\\N");
+            } else if (value instanceof byte[]) {
+                line.append("\\\\x");
+                for (byte b : (byte[]) value) line.append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+            } else {
+                escape(String.valueOf(value), line);
+            }
+        }
+        line.append('\n');
+        out.write(line.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void escape(String value, StringBuilder line) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '\\': line.append("\\\\"); break;
+                case '\t': line.append("\\t"); break;
+                case '\n': line.append("\\n"); break;
+                case '\r': line.append("\\r"); break;
+                default: line.append(c);
+            }
+        }
+    }
+
+    private void writeBinary(Object row) throws IOException {
+        out.writeShort(fields.size());
+        for (int i = 0; i < fields.size(); i++) {
+            Object value = DB.toDatabaseValue(DBFunctions.get(fields.get(i), row));
+            if (value == null) {
+                out.writeInt(-1);
+                continue;
+            }
+            switch (sqlTypes[i]) {
+                case Types.BIGINT: out.writeInt(8); out.writeLong(((Number) value).longValue()); break;
+                case Types.INTEGER: out.writeInt(4); out.writeInt(((Number) value).intValue()); break;
+                case Types.SMALLINT: out.writeInt(2); out.writeShort(((Number) value).shortValue()); break;
+                case Types.BIT:
+                case Types.BOOLEAN: out.writeInt(1); out.writeByte("T".equals(value) ? 1 : 0); break;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY: out.writeInt(((byte[]) value).length); out.write((byte[]) value); break;
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                    byte[] text = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(text.length);
+                    out.write(text);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Binary COPY does not support the type of column " + columnNames.get(i) + " in " + table + ", use CopyFormat.TEXT");
+            }
+        }
+    }
+
+    //binary COPY has to match the exact width of each column, which the column definitions don't tell
+    private int[] findColumnTypes() throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT " + join(columnNames, ", ") + " FROM " + table + " WHERE false")) {
+            ResultSetMetaData metaData = stmt.executeQuery().getMetaData();
+            int[] types = new int[columnNames.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = metaData.getColumnType(i + 1);
+            }
+            return types;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package no.notanumber.sosql;
+
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tells BigBrother in the other processes using the same database about rows altered here, and the other way around.
+ * <p/>
+ * When running, a committing DB publishes the rows it altered with pg_notify on CHANNEL, inside its transaction,
+ * so they are only sent if it commits. All rows of a transaction go in as few payloads as fit postgres' limit.
+ * One connection per process listens on the channel, and informs the local BigBrother about rows altered by other
+ * processes. The altered object is not sent, so spies are told through Spy.rowAlteredElsewhere, not suspectAltered.
+ * Row values are sent as stored in the database, and read back as the column's mapped type, so they equal the local ones.
+ * <p/>
+ * Tables written to are sent too, so results read from them are evicted from the QueryResultCache, and when
+ * a transaction ran SQL that may have written anywhere, all cached rows and results are evicted.
+ * <p/>
+ * A payload is the publishing node's id followed by entries separated by spaces: column=value for an altered row,
+ * #table for a table written to, and * for anything may have changed.
+ */
+public class ClusterNotifications {
+
+    private static final Logger log = LoggerFactory.getLogger(ClusterNotifications.class);
+    public static final String CHANNEL = "sosql_changes";
+    static final int MAX_PAYLOAD = 7900; //postgres refuses payloads of 8000 bytes or more
+    private static final String ENCODING = "UTF-8";
+
+    private static volatile Listener listener;
+    private static final LongAdder published = new LongAdder();
+    private static final LongAdder received = new LongAdder();
+
+    /**
+     * Starts publishing and listening, checking for notifications every pollMillis.
+     * The node id must differ between processes, it tells a process which notifications it sent itself.
+     */
+    public static synchronized void start(String nodeId, long pollMillis) {
+        if (nodeId.contains(" ")) throw new IllegalArgumentException("Node id can not contain spaces: " + nodeId);
+        stop();
+        listener = new Listener(nodeId, pollMillis);
+        listener.start();
+    }
+
+    public static void start() {
+        start(UUID.randomUUID().toString().substring(0, 8), 100);
+    }
+
+    public static synchronized void stop() {
+        Listener running = listener;
+        listener = null;
+        if (running != null) running.shutdown();
+    }
+
+    public static boolean isRunning() {
+        return listener != null;
+    }
+
+    public static Optional<String> getNodeId() {
+        Listener running = listener;
+        return running == null ? Optional.empty() : Optional.of(running.nodeId);
+    }
+
+    /**
+     * Payloads sent.
+     */
+    public static long getPublished() {
+        return published.sum();
+    }
+
+    /**
+     * Rows other processes told about.
+     */
+    public static long getReceived() {
+        return received.sum();
+    }
+
+    /**
+     * Queues notifications about the changes on the connection's transaction.
+     */
+    static void publish(Connection connection, Collection<String> tables, boolean anything, Collection<BigBrother.RowIdentifier> rows) throws SQLException {
+        Listener running = listener;
+        if (running == null || (rows.isEmpty() && tables.isEmpty() && !anything)) return;
+        List<String> payloads = encode(running.nodeId, tables, anything, rows);
+        try (PreparedStatement notify = connection.prepareStatement("SELECT pg_notify(?, ?)")) {
+            for (String payload : payloads) {
+                notify.setString(1, CHANNEL);
+                notify.setString(2, payload);
+                notify.executeQuery().close();
+                published.increment();
+            }
+        }
+    }
+
+    static List<String> encode(String nodeId, Collection<String> tables, boolean anything, Collection<BigBrother.RowIdentifier> rows) {
+        List<String> entries = new ArrayList<>();
+        if (anything) entries.add("*");
+        tables.forEach(table -> entries.add("#" + table));
+        for (BigBrother.RowIdentifier row : rows) {
+            if (row.value != null) entries.add(row.column.columnName + "=" + urlEncode(String.valueOf(DB.toDatabaseValue(row.value))));
+        }
+        List<String> payloads = new ArrayList<>();
+        StringBuilder payload = new StringBuilder(nodeId);
+        for (String entry : entries) {
+            if (payload.length() + 1 + entry.length() > MAX_PAYLOAD && payload.length() > nodeId.length()) {
+                payloads.add(payload.toString());
+                payload = new StringBuilder(nodeId);
+            }
+            payload.append(' ').append(entry);
+        }
+        if (payload.length() > nodeId.length()) payloads.add(payload.toString());
+        return payloads;
+    }
+
+    /**
+     * The changes in a payload, or nothing when the payload was sent by this node.
+     */
+    static Changes decode(String nodeId, String payload) {
+        String[] parts = payload.split(" ");
+        Changes changes = new Changes();
+        if (parts[0].equals(nodeId)) return changes;
+        for (int i = 1; i < parts.length; i++) {
+            String entry = parts[i];
+            int split = entry.indexOf('=');
+            if (entry.equals("*")) changes.anything = true;
+            else if (entry.startsWith("#")) changes.tables.add(entry.substring(1));
+            else if (split > 0) {
+                DatabaseColumn column = ColumnHelper.getColumn(entry.substring(0, split));
+                changes.tables.add(column.table);
+                try {
+                    changes.rows.add(new BigBrother.RowIdentifier(column, parse(column, urlDecode(entry.substring(split + 1)))));
+                } catch (RuntimeException e) {
+                    log.warn("Unreadable row in change notification: " + entry, e);
+                }
+            } else {
+                log.warn("Unknown entry in change notification: " + entry);
+            }
+        }
+        return changes;
+    }
+
+    static class Changes {
+        boolean anything;
+        final Set<String> tables = new HashSet<>();
+        final List<BigBrother.RowIdentifier> rows = new ArrayList<>();
+    }
+
+    /**
+     * The java value of a column, from the database value encode sent, converted as DB.getValueFromRS does.
+     */
+    static Object parse(DatabaseColumn column, String value) {
+        if (column.clazz == String.class) return value;
+        if (DBFunctions.BOOL_TYPES.contains(column.clazz)) return "T".equals(value);
+        if (DBFunctions.INT_TYPES.contains(column.clazz)) return Integer.valueOf(value);
+        if (DBFunctions.LONG_TYPES.contains(column.clazz)) return Long.valueOf(value);
+        if (column.clazz == LocalDate.class) return LocalDate.parse(value, DBFunctions.YYYY_MM_DD);
+        if (column.clazz == LocalDateTime.class) return LocalDateTime.ofInstant(Instant.ofEpochSecond(Long.parseLong(value)), ZoneOffset.UTC);
+        if (column.clazz.isEnum()) {
+            for (Object constant : column.clazz.getEnumConstants()) {
+                if (((Enum<?>) constant).name().equals(value)) return constant;
+            }
+        }
+        throw new IllegalArgumentException("Can not read " + column.columnName + " of type " + column.clazz.getSimpleName() + " from " + value);
+    }
+
+    private static String urlEncode(String value) {
+        try {
+            return URLEncoder.encode(value, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String urlDecode(String value) {
+        try {
+            return URLDecoder.decode(value, ENCODING);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Listener extends Thread {
+        final String nodeId;
+        private final long pollMillis;
+        private volatile boolean running = true;
+        private Connection connection;
+
+        Listener(String nodeId, long pollMillis) {
+            super("ClusterNotifications-" + nodeId);
+            this.nodeId = nodeId;
+            this.pollMillis = pollMillis;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    if (connection == null) listen();
+                    //the driver only reads notifications when talking to the server
+                    try (Statement poll = connection.createStatement()) {
+                        poll.execute("SELECT 1");
+                    }
+                    PGNotification[] notifications = DBFunctions.getPGConnection(connection).getNotifications();
+                    if (notifications != null) Arrays.stream(notifications).forEach(this::received);
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException e) {
+                    running = false;
+                } catch (Exception e) {
+                    if (!running) break;
+                    log.error("Lost connection listening for changes, reconnecting", e);
+                    close();
+                    try {
+                        Thread.sleep(Math.max(1000, pollMillis));
+                    } catch (InterruptedException interrupted) {
+                        running = false;
+                    }
+                }
+            }
+            close();
+        }
+
+        private void listen() throws SQLException {
+            connection = DBFunctions.getConnection();
+            connection.setAutoCommit(true);
+            try (Statement listen = connection.createStatement()) {
+                listen.execute("LISTEN " + CHANNEL);
+            }
+            //changes made while no one listened are unknown
+            EntityCache.clear();
+            QueryResultCache.clear();
+        }
+
+        private void received(PGNotification notification) {
+            try {
+                Changes changes = decode(nodeId, notification.getParameter());
+                if (changes.anything) {
+                    EntityCache.clear();
+                    QueryResultCache.clear();
+                }
+                QueryResultCache.invalidate(changes.tables);
+                received.add(changes.rows.size());
+                changes.rows.forEach(BigBrother::informAlteredElsewhere);
+            } catch (Exception e) {
+                log.error("Failed to handle change notification " + notification.getParameter(), e);
+            }
+        }
+
+        private void close() {
+            if (connection == null) return;
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                log.warn("Could not close listening connection", e);
+            }
+            connection = null;
+        }
+
+        void shutdown() {
+            running = false;
+            interrupt();
+        }
+    }
+}
@@ -3,18 +3,29 @@ package no.notanumber.sosql;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toSet;
 import static no.notanumber.sosql.ColumnType.PrimaryKey;
 
 public class ColumnHelper {
 
     static List<DatabaseColumn> columns;
     static List<String> tables;
+
+    //Lookup tables built once from the column definitions, so none of the methods below have to scan all columns.
+    private static Map<String, DatabaseColumn> columnsByName;
+    private static Map<String, DatabaseColumn> primaryKeys;
+    private static Map<String, Map<String, DatabaseColumn>> foreignKeys;
+    private static Map<String, List<DatabaseColumn>> incomingReferences;
+    private static Map<String, List<DatabaseColumn>> columnsByTable;
+    private static final ConcurrentMap<Field, DatabaseColumn> fieldColumns = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, MappedClass> mappedClasses = new ConcurrentHashMap<>();
+
     static {
         try {
             Properties props = new Properties();
@@ -28,53 +39,67 @@ public class ColumnHelper {
             e.printStackTrace();
             throw new RuntimeException("Could not find properties file so-sql.properties on classpath");
         }
+        indexColumns();
     }
 
+    private static void indexColumns() {
+        Map<String, DatabaseColumn> byName = new HashMap<>();
+        Map<String, DatabaseColumn> pks = new HashMap<>();
+        Map<String, Map<String, DatabaseColumn>> fks = new HashMap<>();
+        Map<String, List<DatabaseColumn>> incoming = new HashMap<>();
+        Map<String, List<DatabaseColumn>> byTable = new HashMap<>();
+        for (DatabaseColumn col : columns) {
+            byName.putIfAbsent(col.columnName, col);
+            byTable.computeIfAbsent(col.table, t -> new ArrayList<>()).add(col);
+            if (col.type == PrimaryKey) pks.putIfAbsent(col.table, col);
+            if (col.joinedTo != null) fks.computeIfAbsent(col.table, t -> new HashMap<>()).putIfAbsent(col.joinedTo, col);
+            if (col.type == ColumnType.ForeignKey) incoming.computeIfAbsent(col.joinedTo, t -> new ArrayList<>()).add(col);
+        }
+        byTable.replaceAll((t, cols) -> Collections.unmodifiableList(cols));
+        incoming.replaceAll((t, cols) -> Collections.unmodifiableList(cols));
+        columnsByName = byName;
+        primaryKeys = pks;
+        foreignKeys = fks;
+        incomingReferences = incoming;
+        columnsByTable = byTable;
+    }
 
     public static DatabaseColumn getColumn(Field f) {
-        return columns.stream().filter(c-> c.columnName.equals(f.getAnnotation(Column.class).columnName())).findFirst().orElseThrow(()->new IllegalArgumentException("No column named " + f.getAnnotation(Column.class).columnName()));
+        return fieldColumns.computeIfAbsent(f, field -> getColumn(field.getAnnotation(Column.class).columnName()));
+    }
+
+    public static DatabaseColumn getColumn(String columnName) {
+        DatabaseColumn column = columnsByName.get(columnName);
+        if (column == null) throw new IllegalArgumentException("No column named " + columnName);
+        return column;
     }
 
     public static Optional<DatabaseColumn> getPrimaryKey(String table) {
-        return columns
-                .stream()
-                .filter(c -> (c.type == PrimaryKey && c.table == table))
-                .findFirst();
+        return Optional.ofNullable(primaryKeys.get(table));
     }
 
     public static Optional<DatabaseColumn> getForeignKey(String mainString, String manyToMany) {
-        return columns
-                .stream()
-                .filter(col -> col.joinedTo == mainString && col.table == manyToMany)
-                .findFirst();
+        return Optional.ofNullable(foreignKeys.getOrDefault(manyToMany, Collections.emptyMap()).get(mainString));
     }
 
     public static Collection<DatabaseColumn>  incomingReferenceColumns(String table) {
-        return columns.stream()
-                .filter(col -> col.type == ColumnType.ForeignKey && col.joinedTo == table)
-                .collect(toList());
+        return incomingReferences.getOrDefault(table, Collections.emptyList());
     }
 
     public static Collection<DatabaseColumn> getColumnsFor(String t) {
-        return columns.stream()
-                .filter(c -> c.table == t)
-                .collect(toList());
+        return columnsByTable.getOrDefault(t, Collections.emptyList());
     }
 
-    public static List<Field> getMappedFields(Class<?> clazz) {
-        List<Field> columnFields = asList(clazz.getDeclaredFields()).stream()
-                .filter(f -> f.isAnnotationPresent(Column.class))
-                .collect(toList());
-        columnFields.forEach(f->f.setAccessible(true));
+    static MappedClass getMappedClass(Class<?> clazz) {
+        return mappedClasses.computeIfAbsent(clazz, MappedClass::new);
+    }
 
-        if (clazz.getSuperclass() != null) {
-            columnFields.addAll(getMappedFields(clazz.getSuperclass()));
-        }
-        return columnFields;
+    public static List<Field> getMappedFields(Class<?> clazz) {
+        return getMappedClass(clazz).fields;
     }
 
     public static Set<String> getTables(Class<?> clazz, Where... searchParams) {
-        Set<String> tables = getMappedFields(clazz).stream().map(field -> getColumn(field).table).collect(toSet());
+        Set<String> tables = new HashSet<>(getMappedClass(clazz).tables);
 
         if (searchParams != null) {
             Stream<String> tableStream = asList(searchParams).stream()
@@ -85,7 +110,7 @@ public class ColumnHelper {
     }
 
     public static <T> Field getPrimaryKeyField(T obj) {
-        return getMappedFields(obj.getClass()).stream().filter(f-> getColumn(f).type == ColumnType.PrimaryKey).findFirst().orElseThrow(() -> new IllegalArgumentException(obj.getClass().getName() + " has no primary key defined"));
+        return getMappedClass(obj.getClass()).getPrimaryKeyField().orElseThrow(() -> new IllegalArgumentException(obj.getClass().getName() + " has no primary key defined"));
     }
 
     public static <T> String getMainTable(T newOne) {
@@ -93,10 +118,7 @@ public class ColumnHelper {
     }
 
     public static <T> String getMainTableForClass(Class<T> clazz) {
-        List<String> pks = getMappedFields(clazz).stream()
-                .filter(f -> getColumn(f).type == ColumnType.PrimaryKey)
-                .map(f -> getColumn(f).table)
-                .collect(toList());
+        List<String> pks = getMappedClass(clazz).primaryKeyTables;
         if (pks.size() > 1) {
             throw new IllegalArgumentException("Multiple primary keys are referenced in class " + clazz + ", must specify which table to do the insert on");
         }
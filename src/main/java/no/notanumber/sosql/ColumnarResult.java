@@ -0,0 +1,226 @@
+package no.notanumber.sosql;
+
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * The rows of a select held as one array per mapped column instead of one object per row, made by DB.selectColumnar.
+ * Long, Integer and Boolean columns are held in primitive arrays, other columns in Object arrays with the values
+ * getValueFromRS gives. A null leaves 0 or false in a primitive array, and sets the row's bit in the column's nulls.
+ * The arrays are not copied, so do not change them.
+ */
+public class ColumnarResult<T> {
+
+    private final Class<T> clazz;
+    private final int size;
+    private final Map<DatabaseColumn, Object> values;
+    private final Map<DatabaseColumn, BitSet> nulls;
+
+    private ColumnarResult(Class<T> clazz, int size, Map<DatabaseColumn, Object> values, Map<DatabaseColumn, BitSet> nulls) {
+        this.clazz = clazz;
+        this.size = size;
+        this.values = values;
+        this.nulls = nulls;
+    }
+
+    public Class<T> getType() {
+        return clazz;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public List<DatabaseColumn> getColumns() {
+        return new ArrayList<>(values.keySet());
+    }
+
+    public long[] getLongs(DatabaseColumn column) {
+        return get(column, long[].class);
+    }
+
+    public int[] getInts(DatabaseColumn column) {
+        return get(column, int[].class);
+    }
+
+    public boolean[] getBooleans(DatabaseColumn column) {
+        return get(column, boolean[].class);
+    }
+
+    public Object[] getObjects(DatabaseColumn column) {
+        return get(column, Object[].class);
+    }
+
+    public boolean isNull(DatabaseColumn column, int row) {
+        if (row < 0 || row >= size) throw new IndexOutOfBoundsException("Row " + row + " of " + size);
+        return nullsOf(column).get(row);
+    }
+
+    /**
+     * The rows where the column is null.
+     */
+    public BitSet getNulls(DatabaseColumn column) {
+        return (BitSet) nullsOf(column).clone();
+    }
+
+    private BitSet nullsOf(DatabaseColumn column) {
+        BitSet columnNulls = nulls.get(column);
+        if (columnNulls == null) throw new IllegalArgumentException(column.columnName + " is not mapped by " + clazz.getSimpleName());
+        return columnNulls;
+    }
+
+    private <A> A get(DatabaseColumn column, Class<A> arrayType) {
+        Object array = values.get(column);
+        if (array == null) throw new IllegalArgumentException(column.columnName + " is not mapped by " + clazz.getSimpleName());
+        if (!arrayType.isInstance(array))
+            throw new IllegalArgumentException(column.columnName + " is held in a " + array.getClass().getSimpleName() + ", not a " + arrayType.getSimpleName());
+        return arrayType.cast(array);
+    }
+
+    /**
+     * Reads rows of a result set into one vector per mapped column, found by column name once.
+     */
+    static class Builder<T> {
+        private final Class<T> clazz;
+        private final Map<DatabaseColumn, Vector> vectors = new LinkedHashMap<>();
+        private int size;
+
+        Builder(Class<T> clazz, ResultSet rs) throws SQLException {
+            this.clazz = clazz;
+            MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+            for (int i = 0; i < mapped.fields.size(); i++) {
+                DatabaseColumn column = mapped.columns.get(i);
+                if (Modifier.isStatic(mapped.fields.get(i).getModifiers())) continue;
+                if (vectors.containsKey(column))
+                    throw new IllegalArgumentException(clazz.getSimpleName() + " maps " + column.columnName + " by more than one field");
+                vectors.put(column, Vector.create(column, rs.findColumn(column.columnName)));
+            }
+        }
+
+        void add(ResultSet rs) throws SQLException {
+            for (Vector vector : vectors.values()) {
+                vector.add(rs, size);
+            }
+            size++;
+        }
+
+        int size() {
+            return size;
+        }
+
+        ColumnarResult<T> build() {
+            Map<DatabaseColumn, Object> values = new LinkedHashMap<>();
+            Map<DatabaseColumn, BitSet> nulls = new HashMap<>();
+            vectors.forEach((column, vector) -> {
+                values.put(column, vector.trim(size));
+                nulls.put(column, vector.nulls);
+            });
+            return new ColumnarResult<>(clazz, size, values, nulls);
+        }
+    }
+
+    private abstract static class Vector {
+        final int index;
+        final BitSet nulls = new BitSet();
+        int capacity = 64;
+
+        Vector(int index) {
+            this.index = index;
+        }
+
+        static Vector create(DatabaseColumn column, int index) {
+            if (DBFunctions.LONG_TYPES.contains(column.clazz)) return new LongVector(index);
+            if (DBFunctions.INT_TYPES.contains(column.clazz)) return new IntVector(index);
+            if (DBFunctions.BOOL_TYPES.contains(column.clazz)) return new BooleanVector(index);
+            return new ObjectVector(column, index);
+        }
+
+        abstract void add(ResultSet rs, int row) throws SQLException;
+
+        abstract Object trim(int size);
+
+        boolean full(int row) {
+            if (row < capacity) return false;
+            capacity *= 2;
+            return true;
+        }
+    }
+
+    private static class LongVector extends Vector {
+        private long[] values = new long[capacity];
+
+        LongVector(int index) { super(index); }
+
+        @Override
+        void add(ResultSet rs, int row) throws SQLException {
+            if (full(row)) values = Arrays.copyOf(values, capacity);
+            values[row] = rs.getLong(index);
+            if (rs.wasNull()) nulls.set(row);
+        }
+
+        @Override
+        Object trim(int size) {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class IntVector extends Vector {
+        private int[] values = new int[capacity];
+
+        IntVector(int index) { super(index); }
+
+        @Override
+        void add(ResultSet rs, int row) throws SQLException {
+            if (full(row)) values = Arrays.copyOf(values, capacity);
+            values[row] = rs.getInt(index);
+            if (rs.wasNull()) nulls.set(row);
+        }
+
+        @Override
+        Object trim(int size) {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class BooleanVector extends Vector {
+        private boolean[] values = new boolean[capacity];
+
+        BooleanVector(int index) { super(index); }
+
+        @Override
+        void add(ResultSet rs, int row) throws SQLException {
+            if (full(row)) values = Arrays.copyOf(values, capacity);
+            values[row] = "T".equals(rs.getString(index));
+            if (rs.wasNull()) nulls.set(row);
+        }
+
+        @Override
+        Object trim(int size) {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class ObjectVector extends Vector {
+        private final DatabaseColumn column;
+        private Object[] values = new Object[capacity];
+
+        ObjectVector(DatabaseColumn column, int index) {
+            super(index);
+            this.column = column;
+        }
+
+        @Override
+        void add(ResultSet rs, int row) throws SQLException {
+            if (full(row)) values = Arrays.copyOf(values, capacity);
+            values[row] = DB.getValueFromRS(rs, index, column);
+            if (values[row] == null) nulls.set(row);
+        }
+
+        @Override
+        Object trim(int size) {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
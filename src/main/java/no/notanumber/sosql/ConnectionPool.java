@@ -0,0 +1,462 @@
+package no.notanumber.sosql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A connection pool built for handing out connections quickly to many threads.
+ * <p/>
+ * A thread first tries the connection it used last, then the others, claiming an idle one with a compare-and-set,
+ * so checking out an idle connection takes no lock. When all are in use and the pool is full, threads wait in line,
+ * and a connection given back is handed straight to the thread that has waited longest. Threads arriving while
+ * others wait get in line behind them.
+ * <p/>
+ * Connections given back are rolled back if a transaction is open, and settings changed while checked out are reset.
+ * With a leak threshold, connections checked out for longer are logged with where they were checked out.
+ * Published as an MBean named no.notanumber.sosql:type=ConnectionPool,name=name.
+ */
+public class ConnectionPool implements DataSource, ConnectionPoolMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ConnectionPool.class);
+    private static final int IDLE = 0, IN_USE = 1, REMOVED = -1;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int maxConnections;
+    private volatile long checkoutTimeoutMillis = 30_000;
+    private volatile long leakThresholdMillis = 0;
+
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private final AtomicInteger total = new AtomicInteger(); //entries, plus connections being opened
+    private final Queue<Waiter> waiters = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger waiting = new AtomicInteger();
+    private final ThreadLocal<Entry> lastUsed = new ThreadLocal<>();
+    private final Histogram checkoutNanos = new Histogram();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+    private final ScheduledExecutorService housekeeper;
+    private final ObjectName objectName;
+    private volatile boolean closed;
+
+    public ConnectionPool(String name, String url, String username, String password, int maxConnections) {
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.maxConnections = maxConnections;
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "ConnectionPool-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeper.scheduleWithFixedDelay(this::reportLeaks, 1, 1, TimeUnit.SECONDS);
+        ObjectName objectName = null;
+        try {
+            objectName = new ObjectName("no.notanumber.sosql:type=ConnectionPool,name=" + name);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            log.warn("Could not publish connection pool " + name + " as an MBean", e);
+        }
+        this.objectName = objectName;
+    }
+
+    /**
+     * How long getConnection waits for a connection before giving up.
+     */
+    public void setCheckoutTimeoutMillis(long millis) {
+        this.checkoutTimeoutMillis = millis;
+    }
+
+    /**
+     * Connections checked out for longer than this are logged as possible leaks. 0, the default, turns it off.
+     * Remembering where each connection was checked out costs a stack trace per checkout.
+     */
+    public void setLeakThresholdMillis(long millis) {
+        this.leakThresholdMillis = millis;
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        long started = System.nanoTime();
+        Entry entry = borrow(started);
+        checkoutNanos.record(System.nanoTime() - started);
+        lastUsed.set(entry);
+        entry.checkedOut = System.currentTimeMillis();
+        entry.leakReported = false;
+        entry.checkedOutAt = leakThresholdMillis > 0 ? new Throwable("Checked out by " + Thread.currentThread().getName()) : null;
+        return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[]{Connection.class}, new Lease(entry));
+    }
+
+    private Entry borrow(long started) throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+        if (waiting.get() == 0) {
+            Entry mine = lastUsed.get();
+            if (mine != null && mine.claim()) return mine;
+            for (Entry entry : entries) {
+                if (entry.claim()) return entry;
+            }
+        }
+        Entry opened = open();
+        if (opened != null) return opened;
+        return await(started);
+    }
+
+    /**
+     * Opens a new connection, or returns null when the pool is full.
+     */
+    private Entry open() throws SQLException {
+        int current;
+        do {
+            current = total.get();
+            if (current >= maxConnections) return null;
+        } while (!total.compareAndSet(current, current + 1));
+        try {
+            Entry entry = new Entry(DriverManager.getConnection(url, username, password));
+            entries.add(entry);
+            return entry;
+        } catch (SQLException | RuntimeException e) {
+            total.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private Entry await(long started) throws SQLException {
+        long deadline = started + TimeUnit.MILLISECONDS.toNanos(checkoutTimeoutMillis);
+        Waiter waiter = new Waiter();
+        waiting.incrementAndGet();
+        waiters.add(waiter);
+        try {
+            //a connection may have been given back after we looked, but before we got in line
+            for (Entry entry : entries) {
+                if (entry.claim()) {
+                    if (waiter.cancel()) return entry;
+                    release(entry);
+                    return waiter.handed();
+                }
+            }
+            while (true) {
+                Entry handed = waiter.handed();
+                if (handed != null) return handed;
+                //checked after getting in line, so either close sees us in line and wakes us, or we see it closed
+                if (closed && waiter.cancel()) throw new SQLException("Connection pool is closed");
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    if (waiter.cancel()) {
+                        timeouts.increment();
+                        throw new SQLException("Timed out after " + checkoutTimeoutMillis + " ms waiting for a connection, "
+                                + getActiveConnections() + " of " + maxConnections + " in use", "08001");
+                    }
+                    return waiter.handed();
+                }
+                LockSupport.parkNanos(this, left);
+                if (Thread.interrupted()) {
+                    if (waiter.cancel()) throw new SQLException("Interrupted waiting for a connection");
+                    Thread.currentThread().interrupt();
+                    return waiter.handed();
+                }
+                //a connection that broke may have made room for a new one
+                if (total.get() < maxConnections && waiter.cancel()) {
+                    Entry opened = open();
+                    if (opened != null) return opened;
+                    waiters.remove(waiter);
+                    waiter = new Waiter();
+                    waiters.add(waiter);
+                }
+            }
+        } finally {
+            waiters.remove(waiter);
+            waiting.decrementAndGet();
+        }
+    }
+
+    private void release(Entry entry) {
+        Waiter waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.hand(entry)) return;
+        }
+        entry.state.set(IDLE);
+        //a thread may have got in line after the line was found empty, but before the connection was idle
+        if (!waiters.isEmpty() && entry.claim()) release(entry);
+    }
+
+    private void giveBack(Entry entry) {
+        if (closed || entry.broken || !entry.reset()) {
+            remove(entry);
+            return;
+        }
+        release(entry);
+    }
+
+    private void remove(Entry entry) {
+        entry.state.set(REMOVED);
+        if (entries.remove(entry)) total.decrementAndGet();
+        try {
+            entry.connection.close();
+        } catch (SQLException e) {
+            log.debug("Could not close connection", e);
+        }
+    }
+
+    private void reportLeaks() {
+        long threshold = leakThresholdMillis;
+        if (threshold <= 0) return;
+        long now = System.currentTimeMillis();
+        for (Entry entry : entries) {
+            if (entry.state.get() == IN_USE && !entry.leakReported && now - entry.checkedOut > threshold && entry.checkedOutAt != null) {
+                entry.leakReported = true;
+                leaks.increment();
+                log.warn("Connection checked out for " + (now - entry.checkedOut) + " ms, possibly leaked", entry.checkedOutAt);
+            }
+        }
+    }
+
+    /**
+     * Closes idle connections, and connections in use as they are given back. Threads waiting for a connection are woken,
+     * and fail.
+     */
+    public void close() {
+        closed = true;
+        housekeeper.shutdown();
+        for (Entry entry : entries) {
+            if (entry.claim()) remove(entry);
+        }
+        waiters.forEach(waiter -> LockSupport.unpark(waiter.thread));
+        try {
+            if (objectName != null) ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        } catch (Exception e) {
+            log.debug("Could not unregister connection pool MBean", e);
+        }
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return entries.size();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return (int) entries.stream().filter(entry -> entry.state.get() == IN_USE).count();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return (int) entries.stream().filter(entry -> entry.state.get() == IDLE).count();
+    }
+
+    @Override
+    public int getWaitingThreads() {
+        return waiting.get();
+    }
+
+    @Override
+    public long getCheckouts() {
+        return checkoutNanos.getCount();
+    }
+
+    @Override
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public long getLeaksSuspected() {
+        return leaks.sum();
+    }
+
+    @Override
+    public double getMeanCheckoutMillis() {
+        return checkoutNanos.getMean() / 1_000_000;
+    }
+
+    @Override
+    public double getPercentile99CheckoutMillis() {
+        return checkoutNanos.getPercentile(99) / 1_000_000.0;
+    }
+
+    @Override
+    public double getMaxCheckoutMillis() {
+        return checkoutNanos.getMax() / 1_000_000.0;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pool only has connections for " + this.username);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) {
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) {
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return 0;
+    }
+
+    @Override
+    public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) return iface.cast(this);
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+
+    private static class Entry {
+        final Connection connection;
+        final AtomicInteger state = new AtomicInteger(IN_USE);
+        final boolean defaultReadOnly;
+        final int defaultIsolation;
+        volatile boolean changed; //settings changed while checked out
+        volatile boolean broken;
+        volatile long checkedOut;
+        volatile Throwable checkedOutAt;
+        volatile boolean leakReported;
+
+        Entry(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.defaultReadOnly = connection.isReadOnly();
+            this.defaultIsolation = connection.getTransactionIsolation();
+        }
+
+        boolean claim() {
+            return state.get() == IDLE && state.compareAndSet(IDLE, IN_USE);
+        }
+
+        /**
+         * Readies the connection for the next user, returns false if it can't be used again.
+         */
+        boolean reset() {
+            try {
+                if (!connection.getAutoCommit()) connection.rollback(); //the driver skips this when no transaction is open
+                if (changed) {
+                    connection.setAutoCommit(true);
+                    connection.setReadOnly(defaultReadOnly);
+                    connection.setTransactionIsolation(defaultIsolation);
+                    changed = false;
+                }
+                connection.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                log.warn("Discarding connection that could not be reset", e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A thread waiting in line. A connection is handed to it by setting its slot, unless it has given up first.
+     */
+    private static class Waiter {
+        private static final Object CANCELLED = new Object();
+        final Thread thread = Thread.currentThread();
+        final AtomicReference<Object> slot = new AtomicReference<>();
+
+        boolean hand(Entry entry) {
+            if (!slot.compareAndSet(null, entry)) return false;
+            LockSupport.unpark(thread);
+            return true;
+        }
+
+        boolean cancel() {
+            return slot.compareAndSet(null, CANCELLED);
+        }
+
+        Entry handed() {
+            Object handed = slot.get();
+            return handed instanceof Entry ? (Entry) handed : null;
+        }
+    }
+
+    /**
+     * The connection as seen by one user, from checkout until close.
+     */
+    private class Lease implements InvocationHandler {
+        private final Entry entry;
+        private volatile boolean released;
+
+        Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        giveBack(entry);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || entry.connection.isClosed();
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(entry.connection)) return entry.connection;
+                    return entry.connection.unwrap((Class<?>) args[0]);
+                case "isWrapperFor":
+                    return ((Class<?>) args[0]).isInstance(entry.connection) || entry.connection.isWrapperFor((Class<?>) args[0]);
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + entry.connection;
+                case "setAutoCommit":
+                case "setReadOnly":
+                case "setTransactionIsolation":
+                    if (!released) entry.changed = true; //the entry may be someone else's by now
+                    break;
+            }
+            if (released) throw new SQLException("Connection has been given back to the pool", "08003");
+            try {
+                return method.invoke(entry.connection, args);
+            } catch (InvocationTargetException e) {
+                Throwable cause = e.getTargetException();
+                if (cause instanceof SQLException && ((SQLException) cause).getSQLState() != null && ((SQLException) cause).getSQLState().startsWith("08")) {
+                    entry.broken = true;
+                }
+                throw cause;
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package no.notanumber.sosql;
+
+public interface ConnectionPoolMXBean {
+
+    int getMaxConnections();
+
+    int getTotalConnections();
+
+    int getActiveConnections();
+
+    int getIdleConnections();
+
+    int getWaitingThreads();
+
+    long getCheckouts();
+
+    long getTimeouts();
+
+    long getLeaksSuspected();
+
+    double getMeanCheckoutMillis();
+
+    double getPercentile99CheckoutMillis();
+
+    double getMaxCheckoutMillis();
+}
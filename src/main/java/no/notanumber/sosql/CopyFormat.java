@@ -0,0 +1,6 @@
+package no.notanumber.sosql;
+
+public enum CopyFormat {
+    TEXT,
+    BINARY;
+}
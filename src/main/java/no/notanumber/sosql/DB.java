@@ -1,6 +1,5 @@
 package no.notanumber.sosql;
 
-import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -8,7 +7,11 @@ import java.lang.reflect.Field;
 import java.sql.*;
 import java.time.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
@@ -18,12 +21,56 @@ import static org.apache.commons.lang.StringUtils.trim;
 public class DB {
 
     private static final Logger log = LoggerFactory.getLogger(DB.class);
+    public static final int BATCH_SIZE = 1000;
+    private static final int MAX_PARAMETERS = Short.MAX_VALUE; //the most parameters postgres accepts in one statement
+    public static final int STATEMENT_CACHE_SIZE = 100;
+    private static final ConcurrentMap<String, Optional<String>> keySequences = new ConcurrentHashMap<>(); //by table
 
-    private Connection connection;
+    private Connection connection; //taken from the pool when first needed
+    private final boolean readOnly;
+    private boolean sharedCaches; //replicas and snapshots may be older than the caches' versions say, see bypassSharedCaches
+    private Session session = Session.current(); //reads its writes
+    private StatementCache statements;
+    private int fetchSize = 1000;
+    private static volatile boolean identityMapByDefault = false;
+    private IdentityMap identityMap = identityMapByDefault ? new IdentityMap() : null;
+    private final Set<String> writtenTables = new HashSet<>(); //rows read from these in this transaction may not be committed
+    private boolean wroteAnywhere; //ran SQL that may have written to any table
+    private long connectionWait; //reported with the first statement run after getting the connection
     final List<Runnable> onSuccessActions = new ArrayList<>(); //to be run when transaction completes successfully
+    private final List<Object> alteredSuspects = new ArrayList<>(); //BigBrother is told when transaction completes successfully
+    private final List<Pair<BigBrother.RowIdentifier, Object>> alteredRows = new ArrayList<>();
+    private final Map<Savepoint, Integer> savepoints = new HashMap<>(); //how many suspects were altered when it was set
+    private Set<Savepoint> rollbackOnly; //when marked, the savepoints set before, rolling back to which clears the mark
 
+    /**
+     * A connection is taken from the pool when the DB is first used, not when it is created,
+     * so a transaction that never goes to the database never holds a connection.
+     */
     public DB() {
-        this.connection = DBFunctions.getConnection();
+        this.readOnly = false;
+        this.sharedCaches = true;
+    }
+
+    private DB(boolean readOnly) {
+        this.readOnly = readOnly;
+        this.sharedCaches = !readOnly;
+    }
+
+    /**
+     * A DB for transactions that only read. Its connection is read only, and comes from a replica if there are any,
+     * see DBFunctions.getReadOnlyConnection. Inserting, updating or deleting with it throws.
+     * It does not use EntityCache or QueryResultCache, as a replica may not have the last commit yet.
+     */
+    public static DB readOnly() {
+        return new DB(true);
+    }
+
+    public DB(Connection connection) {
+        this.readOnly = false;
+        this.sharedCaches = true;
+        this.connection = connection;
+        this.statements = new StatementCache(connection, STATEMENT_CACHE_SIZE);
     }
 
     public <T> List<T> select(Class<T> clazz, Where... whereClause) {
@@ -34,8 +81,16 @@ public class DB {
         return select(clazz, asList(orderBy), whereClause);
     }
 
+    public <T> List<T> select(Class<T> clazz, Limit limit, Where... whereClause) {
+        return select(clazz, new ArrayList<>(), limit, whereClause);
+    }
+
+    public <T> List<T> select(Class<T> clazz, OrderBy orderBy, Limit limit, Where... whereClause) {
+        return select(clazz, asList(orderBy), limit, whereClause);
+    }
+
     public <T> Optional<T> selectOnlyOne(Class<T> clazz, Where... where) {
-        List<T> results = select(clazz, where);
+        List<T> results = select(clazz, new Limit(2), where);
         if (results.isEmpty()) return Optional.empty();
         if (results.size() > 1)
             throw new IllegalArgumentException("Expected only one value, but got " + results.size() + ". " + Arrays.toString(where));
@@ -43,34 +98,82 @@ public class DB {
     }
 
     private <T> List<T> select(Class<T> clazz, List<OrderBy> orderBy, Where... whereClause) {
-        String select = DBFunctions.makeSelect(clazz, orderBy, whereClause);
-
-        Set<String> tables = ColumnHelper.getTables(clazz, whereClause);
-        Collection<Join> joins = new ArrayList<>();
-        if (tables.size() > 1) {
-            joins.addAll(DBFunctions.findJoins(tables));
-            joins.forEach(join -> {
-                tables.add(join.primary.table);
-                tables.add(join.foreign.table);
-            });
+        return select(clazz, orderBy, (Limit) null, whereClause);
+    }
+
+    public <T> List<T> select(Class<T> clazz, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        boolean shared = isSharedCacheUsable(clazz);
+        Object id = (identityMap != null || shared) && (limit == null || (limit.rows > 0 && limit.offset == 0))
+                ? IdentityMap.primaryKeySearchedFor(clazz, whereClause) : null;
+        if (id != null && identityMap != null) {
+            T known = identityMap.get(clazz, id);
+            if (known != null) return new ArrayList<>(asList(known));
+        }
+        if (id != null && shared) {
+            T cached = EntityCache.get(clazz, id);
+            if (cached != null) return remember(clazz, new ArrayList<>(asList(cached)));
         }
+        SelectPlan plan = SelectPlan.forClass(clazz, orderBy, limit != null, false, whereClause);
+        List<Object> params = plan.parameters(whereClause, null, limit);
+        boolean resultCached = sharedCaches && QueryResultCache.isCached(clazz) && !wroteAnywhere && Collections.disjoint(writtenTables, plan.tables);
+        if (resultCached) {
+            List<T> cached = QueryResultCache.get(clazz, plan.sql, params);
+            if (cached != null) return remember(clazz, cached);
+        }
+        long version = shared ? EntityCache.version(clazz) : 0;
+        long resultVersion = resultCached ? QueryResultCache.version(plan.tables) : 0;
+        List<T> loaded = runSQL(clazz, plan.sql, params);
+        if (shared) EntityCache.putAll(clazz, loaded, version);
+        if (resultCached) QueryResultCache.put(clazz, plan.sql, params, plan.tables, loaded, resultVersion);
+        return remember(clazz, loaded);
+    }
 
-        String from = " FROM " + join(tables, ", ");
-        String where = DBFunctions.makeWhere(joins, whereClause);
-        String groupBy = DBFunctions.makeGroupBy(clazz, orderBy);
+    private <T> List<T> remember(Class<T> clazz, List<T> loaded) {
+        return identityMap == null ? loaded : identityMap.merge(clazz, loaded);
+    }
+
+    //rows this transaction has written are not shared until it commits
+    private boolean isSharedCacheUsable(Class<?> clazz) {
+        return sharedCaches && EntityCache.isCached(clazz) && !wroteAnywhere && !writtenTables.contains(ColumnHelper.getMainTableForClass(clazz));
+    }
+
+    /**
+     * Keeps selects away from EntityCache and QueryResultCache, for transactions that may see rows older than the last
+     * local commit, like one in an imported snapshot: a commit since invalidates the caches, but rows read after that
+     * would be cached as current. Read only DBs read from replicas, so they always bypass the caches.
+     */
+    void bypassSharedCaches() {
+        sharedCaches = false;
+    }
 
-        List<String> orderByStrings = orderBy.stream().map(by -> by.getColumn().columnName + " " + by.getOrder()).collect(toList());
-        String orderByStr = orderBy.isEmpty() ? "" : "ORDER BY " + join(orderByStrings, ",");
+    private void wroteTo(String table) {
+        if (readOnly) throw new IllegalStateException("Can not write to " + table + " in a read only transaction");
+        writtenTables.add(table);
+    }
 
-        String sql = join(asList(select, from, where, groupBy, orderByStr), " ");
-        return runSQL(clazz, sql, DBFunctions.createParameterList(whereClause));
+    /**
+     * Returns the first pageSize rows that come after the row after in the order given by orderBy, or the first page when after is null.
+     * Pass the last row of a page to get the next one.
+     * Unlike an offset, the database finds where to start from the values in after, so with an index on the order by columns
+     * a page far into a table costs the same as the first one. The order by columns must not be null, and must together
+     * identify a row, for example by ending with the primary key, or rows may be skipped.
+     */
+    public <T> List<T> selectPage(Class<T> clazz, List<OrderBy> orderBy, T after, int pageSize, Where... whereClause) {
+        SelectPlan plan = SelectPlan.forClass(clazz, orderBy, true, after != null, whereClause);
+        return remember(clazz, runSQL(clazz, plan.sql, plan.parameters(whereClause, after, new Limit(pageSize))));
     }
 
     public void updateOrInsert(String sql, Object... parameters) {
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try {
+            PreparedStatement stmt = statements().prepare(sql);
             List<Object> paramList = Arrays.asList(parameters);
             addParameters(stmt, paramList);
+            long started = QueryStats.now();
             stmt.execute();
+            record(sql, started, QueryStats.now(), Math.max(0, stmt.getUpdateCount()));
+            if (identityMap != null) identityMap.clear(); //no telling which rows changed
+            if (!wroteAnywhere) onSuccessActions.add(EntityCache::clear);
+            wroteAnywhere = true;
             info(sql, paramList);
         } catch (RuntimeException e) {
             log.error(sql);
@@ -82,21 +185,19 @@ public class DB {
     }
 
     public <T> List<T> runSQL(Class<T> clazz, String sql, List<Object> parameters) {
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try {
+            PreparedStatement stmt = statements().prepare(sql);
             addParameters(stmt, parameters);
             debug(sql, parameters);
+            long started = QueryStats.now();
             try (ResultSet result = stmt.executeQuery()) {
-                List<String> columnNames = getColumnNames(result);
+                long executed = QueryStats.now();
+                RowMapper<T> mapper = RowMapper.forResultSet(clazz, result);
                 List<T> list = new ArrayList<>();
                 while (result.next()) {
-                    T instance = clazz.newInstance();
-                    for (Field f : ColumnHelper.getMappedFields(clazz)) {
-                        if (columnNames.contains(f.getName())) {
-                            DBFunctions.set(f, instance, getValueFromRS(result, ColumnHelper.getColumn(f)));
-                        }
-                    }
-                    list.add(instance);
+                    list.add(mapper.map(result));
                 }
+                record(sql, started, executed, list.size());
                 return list;
             }
         } catch (RuntimeException e) {
@@ -108,12 +209,40 @@ public class DB {
         }
     }
 
-    private List<String> getColumnNames(ResultSet result) throws SQLException {
-        List<String> columnNames = new ArrayList<>();
-        for (int i = 1; i <= result.getMetaData().getColumnCount(); i++) {
-            columnNames.add(result.getMetaData().getColumnName(i));
+    public <T> ColumnarResult<T> selectColumnar(Class<T> clazz, Where... whereClause) {
+        return selectColumnar(clazz, new ArrayList<>(), null, whereClause);
+    }
+
+    /**
+     * Runs the same SQL as select, but holds the rows as one array per column, for wide results read column by column,
+     * like the rows of an aggregating class. The rows are not objects, so no caches or identity map are used.
+     */
+    public <T> ColumnarResult<T> selectColumnar(Class<T> clazz, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        SelectPlan plan = SelectPlan.forClass(clazz, orderBy, limit != null, false, whereClause);
+        String sql = plan.sql;
+
+        try {
+            PreparedStatement stmt = statements().prepare(sql);
+            List<Object> params = plan.parameters(whereClause, null, limit);
+            addParameters(stmt, params);
+            debug(sql, params);
+            long started = QueryStats.now();
+            try (ResultSet result = stmt.executeQuery()) {
+                long executed = QueryStats.now();
+                ColumnarResult.Builder<T> columns = new ColumnarResult.Builder<>(clazz, result);
+                while (result.next()) {
+                    columns.add(result);
+                }
+                record(sql, started, executed, columns.size());
+                return columns.build();
+            }
+        } catch (RuntimeException e) {
+            log.error(sql);
+            throw e;
+        } catch (Exception e) {
+            log.error(sql);
+            throw new RuntimeException(e);
         }
-        return columnNames;
     }
 
     public <T> List<T> select(DatabaseColumn column, Class<T> clazz, Where... whereClause) {
@@ -125,40 +254,97 @@ public class DB {
     }
 
     public <T> List<T> select(DatabaseColumn column, Class<T> clazz, List<OrderBy> orderBy, Where... whereClause) {
+        return select(column, clazz, orderBy, (Limit) null, whereClause);
+    }
+
+    public <T> List<T> select(DatabaseColumn column, Class<T> clazz, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
 
         if (!column.clazz.isAssignableFrom(clazz))
             throw new IllegalArgumentException(column + " is not of type  " + clazz.getSimpleName());
-        Set<String> selectThese = new HashSet<>();
-        orderBy.forEach(order -> selectThese.add(order.getColumn().columnName));
-        selectThese.add(column.columnName);
-        String select = "SELECT DISTINCT " + StringUtils.join(selectThese, ", ");
-        Set<String> tables = ColumnHelper.getTables(column.clazz, whereClause);
-        tables.add(column.table);
-        Collection<Join> joins = new ArrayList<>();
-        if (tables.size() > 1) {
-            joins.addAll(DBFunctions.findJoins(tables));
-            joins.forEach(join -> {
-                tables.add(join.primary.table);
-                tables.add(join.foreign.table);
-            });
-        }
+        List<T> list = new ArrayList<>();
+        selectColumn(column, orderBy, limit, whereClause, new ColumnValues() {
+            @Override
+            public void add(ResultSet rs, int index) throws SQLException {
+                list.add((T) getValueFromRS(rs, index, column));
+            }
+
+            @Override
+            public int size() {
+                return list.size();
+            }
+        });
+        return list;
+    }
+
+    /**
+     * The column's values as longs, read without boxing. Throws if a value is null, unless given a nullValue to use instead.
+     */
+    public long[] selectLongs(DatabaseColumn column, Where... whereClause) {
+        return selectLongs(column, new ArrayList<>(), null, whereClause);
+    }
+
+    public long[] selectLongs(DatabaseColumn column, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        return selectColumn(column, orderBy, limit, whereClause, new LongColumn(column, false, 0)).values();
+    }
+
+    public long[] selectLongs(DatabaseColumn column, long nullValue, Where... whereClause) {
+        return selectLongs(column, nullValue, new ArrayList<>(), null, whereClause);
+    }
+
+    public long[] selectLongs(DatabaseColumn column, long nullValue, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        return selectColumn(column, orderBy, limit, whereClause, new LongColumn(column, true, nullValue)).values();
+    }
+
+    public int[] selectInts(DatabaseColumn column, Where... whereClause) {
+        return selectInts(column, new ArrayList<>(), null, whereClause);
+    }
+
+    public int[] selectInts(DatabaseColumn column, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        return selectColumn(column, orderBy, limit, whereClause, new IntColumn(column, false, 0)).values();
+    }
+
+    public int[] selectInts(DatabaseColumn column, int nullValue, Where... whereClause) {
+        return selectInts(column, nullValue, new ArrayList<>(), null, whereClause);
+    }
+
+    public int[] selectInts(DatabaseColumn column, int nullValue, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        return selectColumn(column, orderBy, limit, whereClause, new IntColumn(column, true, nullValue)).values();
+    }
+
+    public double[] selectDoubles(DatabaseColumn column, Where... whereClause) {
+        return selectDoubles(column, new ArrayList<>(), null, whereClause);
+    }
 
-        String from = " FROM " + join(tables, ",");
-        String where = DBFunctions.makeWhere(joins, whereClause);
-        List<String> orderByStrings = orderBy.stream().map(by -> by.getColumn().columnName + " " + by.getOrder()).collect(toList());
-        String orderByStr = orderBy.isEmpty() ? "" : "ORDER BY " + join(orderByStrings, ",");
-        String sql = join(asList(trim(select), trim(from), trim(where), trim(orderByStr)), " ").replace("  ", " ");
+    public double[] selectDoubles(DatabaseColumn column, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        return selectColumn(column, orderBy, limit, whereClause, new DoubleColumn(column, false, 0)).values();
+    }
+
+    public double[] selectDoubles(DatabaseColumn column, double nullValue, Where... whereClause) {
+        return selectDoubles(column, nullValue, new ArrayList<>(), null, whereClause);
+    }
+
+    public double[] selectDoubles(DatabaseColumn column, double nullValue, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        return selectColumn(column, orderBy, limit, whereClause, new DoubleColumn(column, true, nullValue)).values();
+    }
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
-            List<Object> params = DBFunctions.createParameterList(whereClause);
+    private <C extends ColumnValues> C selectColumn(DatabaseColumn column, List<OrderBy> orderBy, Limit limit, Where[] whereClause, C values) {
+        SelectPlan plan = SelectPlan.forColumn(column, orderBy, limit != null, whereClause);
+        String sql = plan.sql;
+
+        try {
+            PreparedStatement stmt = statements().prepare(sql);
+            List<Object> params = plan.parameters(whereClause, null, limit);
             addParameters(stmt, params);
             debug(sql, params);
+            long started = QueryStats.now();
             try (ResultSet result = stmt.executeQuery()) {
-                List<T> list = new ArrayList<>();
+                long executed = QueryStats.now();
+                int index = result.findColumn(column.columnName);
                 while (result.next()) {
-                    list.add((T) getValueFromRS(result, column));
+                    values.add(result, index);
                 }
-                return list;
+                record(sql, started, executed, values.size());
+                return values;
             }
         } catch (RuntimeException e) {
             log.error(sql);
@@ -169,6 +355,186 @@ public class DB {
         }
     }
 
+    private interface ColumnValues {
+        void add(ResultSet rs, int index) throws SQLException;
+
+        int size();
+    }
+
+    private static final List<Class<?>> INT_READABLE = asList(Integer.class, int.class, Short.class, short.class, Byte.class, byte.class);
+    private static final List<Class<?>> LONG_READABLE = asList(Long.class, long.class, Integer.class, int.class, Short.class, short.class, Byte.class, byte.class);
+    private static final List<Class<?>> DOUBLE_READABLE = asList(Double.class, double.class, Float.class, float.class,
+            Long.class, long.class, Integer.class, int.class, Short.class, short.class, Byte.class, byte.class);
+
+    /**
+     * Collects a column's values in an array, doubling it when full. Only columns whose values fit the array are read,
+     * a BigDecimal column would be truncated.
+     */
+    private abstract static class PrimitiveColumn implements ColumnValues {
+        final DatabaseColumn column;
+        final boolean nullable;
+        int size;
+
+        PrimitiveColumn(DatabaseColumn column, boolean nullable, List<Class<?>> readable, String as) {
+            if (!readable.contains(column.clazz))
+                throw new IllegalArgumentException(column.columnName + " of type " + column.clazz.getSimpleName() + " can not be read as " + as + " without loss");
+            this.column = column;
+            this.nullable = nullable;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        boolean isNull(ResultSet rs) throws SQLException {
+            if (!rs.wasNull()) return false;
+            if (!nullable) throw new IllegalStateException(column + " is null in row " + (size + 1) + ", give a value to use for null");
+            return true;
+        }
+    }
+
+    private static class LongColumn extends PrimitiveColumn {
+        private final long nullValue;
+        private long[] values = new long[64];
+
+        LongColumn(DatabaseColumn column, boolean nullable, long nullValue) {
+            super(column, nullable, LONG_READABLE, "long");
+            this.nullValue = nullValue;
+        }
+
+        @Override
+        public void add(ResultSet rs, int index) throws SQLException {
+            long value = rs.getLong(index);
+            if (isNull(rs)) value = nullValue;
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        long[] values() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class IntColumn extends PrimitiveColumn {
+        private final int nullValue;
+        private int[] values = new int[64];
+
+        IntColumn(DatabaseColumn column, boolean nullable, int nullValue) {
+            super(column, nullable, INT_READABLE, "int");
+            this.nullValue = nullValue;
+        }
+
+        @Override
+        public void add(ResultSet rs, int index) throws SQLException {
+            int value = rs.getInt(index);
+            if (isNull(rs)) value = nullValue;
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] values() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    private static class DoubleColumn extends PrimitiveColumn {
+        private final double nullValue;
+        private double[] values = new double[64];
+
+        DoubleColumn(DatabaseColumn column, boolean nullable, double nullValue) {
+            super(column, nullable, DOUBLE_READABLE, "double");
+            this.nullValue = nullValue;
+        }
+
+        @Override
+        public void add(ResultSet rs, int index) throws SQLException {
+            double value = rs.getDouble(index);
+            if (isNull(rs)) value = nullValue;
+            if (size == values.length) values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        double[] values() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+
+    public <T> Stream<T> stream(Class<T> clazz, Where... whereClause) {
+        return stream(clazz, new ArrayList<>(), whereClause);
+    }
+
+    /**
+     * Like select, but rows are fetched from the database fetchSize at a time, through a server side cursor,
+     * and mapped as the stream is consumed. The stream must be closed, or read to the end, to release the cursor.
+     */
+    public <T> Stream<T> stream(Class<T> clazz, List<OrderBy> orderBy, Where... whereClause) {
+        SelectPlan plan = SelectPlan.forClass(clazz, orderBy, whereClause);
+        return stream(plan.sql, plan.parameters(whereClause), rs -> {
+            RowMapper<T> mapper = RowMapper.forResultSet(clazz, rs);
+            return mapper::map;
+        });
+    }
+
+    public <T> Stream<T> stream(DatabaseColumn column, Class<T> clazz, Where... whereClause) {
+        return stream(column, clazz, new ArrayList<>(), whereClause);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T> Stream<T> stream(DatabaseColumn column, Class<T> clazz, List<OrderBy> orderBy, Where... whereClause) {
+        if (!column.clazz.isAssignableFrom(clazz))
+            throw new IllegalArgumentException(column + " is not of type  " + clazz.getSimpleName());
+        SelectPlan plan = SelectPlan.forColumn(column, orderBy, whereClause);
+        return stream(plan.sql, plan.parameters(whereClause), rs -> {
+            int index = rs.findColumn(column.columnName);
+            return row -> (T) getValueFromRS(row, index, column);
+        });
+    }
+
+    private interface RowReaderFactory<T> {
+        ResultSetSpliterator.RowReader<T> create(ResultSet rs) throws SQLException;
+    }
+
+    private <T> Stream<T> stream(String sql, List<Object> params, RowReaderFactory<T> readerFactory) {
+        PreparedStatement stmt = null;
+        try {
+            stmt = connection().prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stmt.setFetchSize(fetchSize);
+            addParameters(stmt, params);
+            debug(sql, params);
+            long started = QueryStats.now();
+            ResultSet result = stmt.executeQuery();
+            long executed = QueryStats.now();
+            ResultSetSpliterator.Finished finished = null;
+            if (started != QueryStats.NOT_TIMED) { //recorded when the stream is done, by then other statements may have run
+                long wait = connectionWait;
+                connectionWait = 0;
+                finished = (rowCount, readNanos) -> QueryStats.record(sql, started, executed, executed + readNanos, rowCount, wait);
+            }
+            ResultSetSpliterator<T> rows = new ResultSetSpliterator<>(stmt, result, readerFactory.create(result), finished);
+            return StreamSupport.stream(rows, false).onClose(rows::close);
+        } catch (Exception e) {
+            log.error(sql);
+            try {
+                if (stmt != null) stmt.close();
+            } catch (SQLException closeFailed) {
+                e.addSuppressed(closeFailed);
+            }
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * How many rows streams fetch from the database at a time.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
     public <T> void update(T updated) {
         update(updated, ColumnHelper.getMainTable(updated));
     }
@@ -196,16 +562,23 @@ public class DB {
                 .orElseThrow(() -> new IllegalStateException("Cannot update " + updated.getClass().getName() + " as it has no primary key field"));
 
         String pkName = ColumnHelper.getColumn(pk).columnName;
-        String sql = "UPDATE " + table + " SET " + join(setExpressions, ", ") + " WHERE " + pkName + " = " + DBFunctions.get(pk, updated);
+        String sql = "UPDATE " + table + " SET " + join(setExpressions, ", ") + " WHERE " + pkName + " = ?";
+        params.add(DBFunctions.get(pk, updated));
         if (versionField.isPresent()) {
             String versionName = ColumnHelper.getColumn(versionField.get()).columnName;
-            sql += " AND " + versionName + " = " + DBFunctions.get(versionField.get(), updated);
+            sql += " AND " + versionName + " = ?";
+            params.add(DBFunctions.get(versionField.get(), updated));
         }
 
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try {
+            PreparedStatement stmt = statements().prepare(sql);
             addParameters(stmt, params);
-            if (stmt.executeUpdate() == 0) {
+            long started = QueryStats.now();
+            wroteTo(table);
+            int updatedRows = stmt.executeUpdate();
+            record(sql, started, QueryStats.now(), updatedRows);
+            if (updatedRows == 0) {
                 String errorMsg = "Could not find row in table " + table + " with " + pkName + " = " + DBFunctions.get(pk, updated);
                 if (versionField.isPresent()) {
                     errorMsg += " and " + ColumnHelper.getColumn(versionField.get()) + " = " + DBFunctions.get(versionField.get(), updated);
@@ -216,8 +589,9 @@ public class DB {
             if (versionField.isPresent()) {
                 DBFunctions.set(versionField.get(), updated, (Integer) (DBFunctions.get(versionField.get(), updated)) + 1);
             }
+            if (identityMap != null) identityMap.put(updated);
             info(sql, params);
-            onSuccessActions.add(() -> BigBrother.informAllAgents(updated));
+            alteredSuspects.add(updated);
         } catch (SQLException e) {
             log.error(sql);
             throw new RuntimeException(e);
@@ -225,11 +599,17 @@ public class DB {
     }
 
     private void debug(String sql, List<Object> params) {
-        log.debug(insertParametersInSQL(sql, params));
+        if (log.isDebugEnabled()) log.debug(insertParametersInSQL(sql, params));
     }
 
     private void info(String sql, List<Object> params) {
-        log.info(insertParametersInSQL(sql, params));
+        if (log.isInfoEnabled()) log.info(insertParametersInSQL(sql, params));
+    }
+
+    private void record(String sql, long started, long executed, long rows) {
+        if (started == QueryStats.NOT_TIMED) return;
+        QueryStats.record(sql, started, executed, System.nanoTime(), rows, connectionWait);
+        connectionWait = 0;
     }
 
     private String insertParametersInSQL(String sql, List<Object> params) {
@@ -262,19 +642,25 @@ public class DB {
                 .collect(toList());
 
         String sql = "INSERT INTO " + table + "(" + join(fieldNames, ", ") + ") VALUES(" + join(valueMarkers, ", ") + ")";
-        try (PreparedStatement stmt = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+        try {
+            wroteTo(table);
+            PreparedStatement stmt = statements().prepare(sql, true);
             addParameters(stmt, params);
+            long started = QueryStats.now();
             stmt.execute();
-            ResultSet newIdRS = stmt.getGeneratedKeys();
-
-            newIdRS.next();
-            long newId = newIdRS.getLong(1);
+            record(sql, started, QueryStats.now(), 1);
+            long newId;
+            try (ResultSet newIdRS = stmt.getGeneratedKeys()) {
+                newIdRS.next();
+                newId = newIdRS.getLong(1);
+            }
             Optional<Field> pk = all.stream().filter(f -> ColumnHelper.getColumn(f).type == ColumnType.PrimaryKey).findFirst();
             if (pk.isPresent()) {
                 DBFunctions.set(pk.get(), newInstance, newId);
             }
+            if (identityMap != null) identityMap.put(newInstance);
             info(sql, params);
-            onSuccessActions.add(() -> BigBrother.informAllAgents(newInstance));
+            alteredSuspects.add(newInstance);
             return newId;
         } catch (Exception e) {
             log.error(sql);
@@ -282,18 +668,177 @@ public class DB {
         }
     }
 
+    /**
+     * Inserts all objects with as few round trips as possible: objects are grouped by class, and each group is inserted
+     * into the class' main table with multi-row INSERT statements of up to BATCH_SIZE rows. The generated primary keys
+     * are written back to the objects, and spies are informed about the whole batch once the transaction commits.
+     */
+    public void insertAll(Collection<?> newOnes) {
+        groupByClass(newOnes).forEach((clazz, group) -> insertAll(group, ColumnHelper.getMainTableForClass(clazz)));
+    }
+
+    public <T> void insertAll(Collection<T> newOnes, String table) {
+        groupByClass(newOnes).values().forEach(group -> {
+            for (int from = 0; from < group.size(); from += insertRows(group, from, table)) ;
+            if (identityMap != null) group.forEach(identityMap::put);
+            alteredSuspects.addAll(group);
+        });
+    }
+
+    private static <T> Map<Class<?>, List<T>> groupByClass(Collection<T> objects) {
+        Map<Class<?>, List<T>> byClass = new LinkedHashMap<>();
+        objects.forEach(obj -> byClass.computeIfAbsent(obj.getClass(), c -> new ArrayList<>()).add(obj));
+        return byClass;
+    }
+
+    /**
+     * Inserts the objects starting at index from, as many as fit in one statement, returns how many were inserted.
+     * Postgres does not promise to return the rows of INSERT ... RETURNING in the order they were given, so primary keys
+     * are taken from the key's sequence first, and inserted with the rows. When the key has no sequence, rows are
+     * inserted one at a time, and each gets the key it returns.
+     */
+    private <T> int insertRows(List<T> group, int from, String table) {
+        wroteTo(table);
+        MappedClass mapped = ColumnHelper.getMappedClass(group.get(0).getClass());
+        List<Field> inMainTable = new ArrayList<>();
+        Field pk = null;
+        for (int i = 0; i < mapped.fields.size(); i++) {
+            DatabaseColumn col = mapped.columns.get(i);
+            if (col.table != table) continue;
+            if (col.type == ColumnType.PrimaryKey) pk = mapped.fields.get(i);
+            else inMainTable.add(mapped.fields.get(i));
+        }
+        String sql = null;
+        try {
+            Optional<String> sequence = pk == null ? Optional.empty() : keySequence(table, ColumnHelper.getColumn(pk));
+            boolean keysFirst = sequence.isPresent();
+            int columns = inMainTable.size() + (keysFirst ? 1 : 0);
+            int rows = pk != null && !keysFirst ? 1 : Math.min(group.size() - from, Math.min(BATCH_SIZE, MAX_PARAMETERS / Math.max(1, columns)));
+            List<T> inserted = group.subList(from, from + rows);
+
+            List<String> fieldNames = inMainTable.stream().map(f -> ColumnHelper.getColumn(f).columnName).collect(toList());
+            if (keysFirst) fieldNames.add(0, ColumnHelper.getColumn(pk).columnName);
+            String valueMarkers = "(" + join(Collections.nCopies(columns, "?"), ", ") + ")";
+            String returning = pk != null && !keysFirst ? " RETURNING " + ColumnHelper.getColumn(pk).columnName : "";
+            sql = "INSERT INTO " + table + "(" + join(fieldNames, ", ") + ") VALUES" + join(Collections.nCopies(rows, valueMarkers), ", ") + returning;
+
+            if (keysFirst) {
+                long[] keys = nextKeys(sequence.get(), rows);
+                for (int i = 0; i < rows; i++) DBFunctions.set(pk, inserted.get(i), keys[i]);
+            }
+            List<Object> params = new ArrayList<>(rows * columns);
+            for (T newInstance : inserted) {
+                if (keysFirst) params.add(DBFunctions.get(pk, newInstance));
+                inMainTable.forEach(f -> params.add(DBFunctions.get(f, newInstance)));
+            }
+
+            PreparedStatement stmt = statements().prepare(sql);
+            addParameters(stmt, params);
+            long started = QueryStats.now();
+            long executed = started;
+            if (returning.isEmpty()) {
+                stmt.executeUpdate();
+                executed = QueryStats.now();
+            } else {
+                try (ResultSet newId = stmt.executeQuery()) {
+                    executed = QueryStats.now();
+                    newId.next();
+                    DBFunctions.set(pk, inserted.get(0), newId.getLong(1));
+                }
+            }
+            //statistics are kept for the single row statement, not for each number of rows
+            String shape = sql.substring(0, sql.indexOf("VALUES") + 6) + valueMarkers + returning;
+            record(shape, started, executed, rows);
+            log.info("Inserted " + rows + " rows into " + table);
+            return rows;
+        } catch (Exception e) {
+            log.error(sql);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The sequence the table's primary key is taken from, if any. Tables do not change while running, so it is looked up once.
+     */
+    private Optional<String> keySequence(String table, DatabaseColumn pk) throws SQLException {
+        Optional<String> known = keySequences.get(table);
+        if (known != null) return known;
+        PreparedStatement stmt = statements().prepare("SELECT pg_get_serial_sequence(?, ?)");
+        addParameters(stmt, asList(table, pk.columnName));
+        try (ResultSet rs = stmt.executeQuery()) {
+            Optional<String> sequence = Optional.ofNullable(rs.next() ? rs.getString(1) : null);
+            keySequences.put(table, sequence);
+            return sequence;
+        }
+    }
+
+    private long[] nextKeys(String sequence, int count) throws SQLException {
+        PreparedStatement stmt = statements().prepare("SELECT nextval(?::regclass) FROM generate_series(1, ?)");
+        addParameters(stmt, asList(sequence, count));
+        long[] keys = new long[count];
+        try (ResultSet rs = stmt.executeQuery()) {
+            for (int i = 0; i < count; i++) {
+                if (!rs.next()) throw new SQLException(sequence + " gave " + i + " keys, not " + count);
+                keys[i] = rs.getLong(1);
+            }
+        }
+        return keys;
+    }
+
+    public <T> long bulkLoad(Stream<T> rows, Class<T> clazz) {
+        try (Stream<T> closing = rows) {
+            return bulkLoad(closing.iterator(), clazz, ColumnHelper.getMainTableForClass(clazz), CopyFormat.TEXT, true);
+        }
+    }
+
+    public <T> long bulkLoad(Iterator<T> rows, Class<T> clazz) {
+        return bulkLoad(rows, clazz, ColumnHelper.getMainTableForClass(clazz), CopyFormat.TEXT, true);
+    }
+
+    /**
+     * Loads rows into table with postgres' COPY, much faster than inserting for large amounts of data.
+     * Columns are encoded the same way as when inserting. Primary keys are left to the database,
+     * and are not written back to the objects.
+     * Spies are told about the rows when informSpies is set, as they are when inserting, which keeps every object
+     * until the transaction commits. Pass false to skip them and load in constant memory.
+     * Returns the number of rows loaded.
+     */
+    public <T> long bulkLoad(Iterator<T> rows, Class<T> clazz, String table, CopyFormat format, boolean informSpies) {
+        BulkLoader loader = new BulkLoader(connection(), clazz, table, format);
+        wroteTo(table);
+        List<T> loaded = new ArrayList<>();
+        try {
+            long started = QueryStats.now();
+            long count = loader.load(rows, row -> {
+                if (informSpies) loaded.add(row);
+            });
+            record(loader.getSQL(), started, QueryStats.now(), count);
+            log.info("Copied " + count + " rows into " + table);
+            if (informSpies) alteredSuspects.addAll(loaded);
+            return count;
+        } catch (Exception e) {
+            log.error(loader.getSQL());
+            throw new RuntimeException(e);
+        }
+    }
+
     public <T> void delete(Class<T> clazz, Where... where) {
         String table = ColumnHelper.getMainTableForClass(clazz);
         Collection<T> deleted = select(clazz, where);
         Optional<DatabaseColumn> pk = ColumnHelper.getPrimaryKey(table);
         String sql = "DELETE FROM " + table + " " + DBFunctions.makeWhere(new ArrayList<Join>(), where);
 
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+        try {
+            PreparedStatement stmt = statements().prepare(sql);
             List<Object> params = DBFunctions.createParameterList(where);
             addParameters(stmt, params);
-            stmt.execute();
+            long started = QueryStats.now();
+            wroteTo(table);
+            int deletedRows = stmt.executeUpdate();
+            record(sql, started, QueryStats.now(), deletedRows);
+            if (identityMap != null) deleted.forEach(identityMap::remove);
             info(sql, params);
-            onSuccessActions.add(() -> BigBrother.informAllAgents(deleted.toArray()));
+            alteredSuspects.addAll(deleted);
         } catch (Exception e) {
             log.error(sql);
             throw new RuntimeException(e);
@@ -326,16 +871,20 @@ public class DB {
         DatabaseColumn fkFrom = ColumnHelper.getForeignKey(ColumnHelper.getMainTable(from), manyToMany).orElseThrow(() -> new IllegalArgumentException("no foreign keys found for " + from));
         DatabaseColumn fkTo = ColumnHelper.getForeignKey(ColumnHelper.getMainTable(to), manyToMany).orElseThrow(() -> new IllegalArgumentException("no foreign keys found for " + to));
         String filledOut = String.format(sql, manyToMany, fkFrom.columnName, fkTo.columnName);
+        wroteTo(manyToMany);
 
-        try (PreparedStatement stmt = connection.prepareStatement(filledOut)) {
+        try {
+            PreparedStatement stmt = statements().prepare(filledOut);
             Long fromId = (Long) ColumnHelper.getPrimaryKeyField(from).get(from);
             Long toId = (Long) ColumnHelper.getPrimaryKeyField(to).get(to);
             stmt.setLong(1, fromId);
             stmt.setLong(2, toId);
-            stmt.executeUpdate();
+            long started = QueryStats.now();
+            int rows = stmt.executeUpdate();
+            record(filledOut, started, QueryStats.now(), rows);
             info(filledOut, Arrays.asList(fromId, toId));
-            onSuccessActions.add(() -> BigBrother.inform(new BigBrother.RowIdentifier(fkFrom, fromId), to));
-            onSuccessActions.add(() -> BigBrother.inform(new BigBrother.RowIdentifier(fkTo, toId), from));
+            alteredRows.add(new Pair<>(new BigBrother.RowIdentifier(fkFrom, fromId), to));
+            alteredRows.add(new Pair<>(new BigBrother.RowIdentifier(fkTo, toId), from));
 
         } catch (Exception e) {
             log.error(sql);
@@ -346,27 +895,17 @@ public class DB {
     public static void addParameters(PreparedStatement stmt, List<Object> params) {
         try {
             for (int i = 1; i <= params.size(); i++) {
-                Object p = params.get(i - 1);
+                Object p = toDatabaseValue(params.get(i - 1));
                 if (p == null) {
                     stmt.setObject(i, null);
-                } else if (p instanceof Boolean) {
-                    stmt.setString(i, ((boolean) p ? "T" : "F"));
                 } else if (p instanceof String) {
                     stmt.setString(i, (String) p);
                 } else if (p instanceof Integer) {
                     stmt.setInt(i, (Integer) p);
                 } else if (p instanceof Long) {
                     stmt.setLong(i, (Long) p);
-                } else if (p instanceof LocalDate) {
-                    stmt.setInt(i, Integer.parseInt(((LocalDate) p).format(DBFunctions.YYYY_MM_DD)));
-                }else if (p instanceof LocalDateTime) {
-                    stmt.setLong(i, ((LocalDateTime)p).toInstant(ZoneOffset.UTC).getEpochSecond());
-                } else if (p.getClass().isEnum()) {
-                    stmt.setString(i, ((Enum<?>) p).name());
-                } else if (p.getClass().equals(byte[].class)) {
-                    stmt.setBytes(i, (byte[]) p);
                 } else {
-                    throw new IllegalArgumentException("No mapping found for " + p);
+                    stmt.setBytes(i, (byte[]) p);
                 }
             }
         } catch (Exception e) {
@@ -374,30 +913,56 @@ public class DB {
         }
     }
 
+    /**
+     * Converts a java value to what is stored in the database: a String, Integer, Long, byte[] or null.
+     */
+    public static Object toDatabaseValue(Object p) {
+        if (p == null) {
+            return null;
+        } else if (p instanceof Boolean) {
+            return (boolean) p ? "T" : "F";
+        } else if (p instanceof String || p instanceof Integer || p instanceof Long) {
+            return p;
+        } else if (p instanceof LocalDate) {
+            return Integer.parseInt(((LocalDate) p).format(DBFunctions.YYYY_MM_DD));
+        } else if (p instanceof LocalDateTime) {
+            return ((LocalDateTime) p).toInstant(ZoneOffset.UTC).getEpochSecond();
+        } else if (p.getClass().isEnum()) {
+            return ((Enum<?>) p).name();
+        } else if (p.getClass().equals(byte[].class)) {
+            return p;
+        } else {
+            throw new IllegalArgumentException("No mapping found for " + p);
+        }
+    }
+
     public static Object getValueFromRS(ResultSet rs, DatabaseColumn col) throws IllegalAccessException, SQLException {
-        String colName = col.columnName;
+        return getValueFromRS(rs, rs.findColumn(col.columnName), col);
+    }
+
+    public static Object getValueFromRS(ResultSet rs, int index, DatabaseColumn col) throws SQLException {
         if (col.clazz == String.class) {
-            return rs.getString(colName);
+            return rs.getString(index);
         } else if (DBFunctions.BOOL_TYPES.contains(col.clazz)) {
-            boolean boolValue = "T".equals(rs.getString(colName));
+            boolean boolValue = "T".equals(rs.getString(index));
             return (rs.wasNull() ? null : boolValue);
         } else if (DBFunctions.INT_TYPES.contains(col.clazz)) {
-            int intValue = rs.getInt(colName);
+            int intValue = rs.getInt(index);
             return (rs.wasNull() ? null : intValue);
         } else if (DBFunctions.LONG_TYPES.contains(col.clazz)) {
-            long longValue = rs.getLong(colName);
+            long longValue = rs.getLong(index);
             return (rs.wasNull() ? null : longValue);
         } else if (col.clazz == LocalDate.class) {
-            String dateString = String.valueOf(rs.getInt(colName));
+            String dateString = String.valueOf(rs.getInt(index));
             return (rs.wasNull() ? null : LocalDate.parse(dateString, DBFunctions.YYYY_MM_DD));
         } else if (col.clazz == LocalDateTime.class) {
-            Long time = rs.getLong(colName);
+            Long time = rs.getLong(index);
             return (rs.wasNull() ? null : LocalDateTime.ofInstant(Instant.ofEpochSecond(time), ZoneOffset.UTC));
         } else if (col.clazz == byte[].class) {
-            byte[] array = rs.getBytes(colName);
+            byte[] array = rs.getBytes(index);
             return rs.wasNull() ? null : array;
         } else if (col.clazz.isEnum()) {
-            String enumVal = trim(rs.getString(colName));
+            String enumVal = trim(rs.getString(index));
             if (!rs.wasNull()) {
                 try {
                     return Enum.valueOf((Class<? extends Enum>) col.clazz, enumVal);
@@ -407,36 +972,231 @@ public class DB {
             }
             return null;
         } else {
-            throw new IllegalArgumentException("Damn it, didn't find any type for " + colName + " with type " + col.clazz);
+            throw new IllegalArgumentException("Damn it, didn't find any type for " + col.columnName + " with type " + col.clazz);
         }
     }
 
     public void commitAndReleaseConnection() {
+        if (rollbackOnly != null) {
+            rollback();
+            throw new IllegalStateException("Rolled back instead of committed, as a call joining the transaction failed");
+        }
         try {
-            if (connection == null) return;
+            if (connection == null) { //never used, nothing to commit
+                forgetTransaction();
+                return;
+            }
             if (connection.isClosed()) return;
+            List<Pair<BigBrother.RowIdentifier, Object>> altered = collectAlteredRows();
+            Set<BigBrother.RowIdentifier> alteredKeys = new LinkedHashSet<>();
+            altered.forEach(row -> alteredKeys.add(row.from));
+            //sent with the transaction, so other processes only hear of it if it commits
+            ClusterNotifications.publish(connection, writtenTables, wroteAnywhere, alteredKeys);
             connection.commit();
-            onSuccessActions.forEach(runnable -> runnable.run());
-            onSuccessActions.clear();
+            if (wroteAnywhere || !writtenTables.isEmpty()) session.committedWrite();
+            if (wroteAnywhere) QueryResultCache.clear();
+            else QueryResultCache.invalidate(writtenTables);
+            statements.closeAll();
             connection.close();
+            //the connection is back in the pool before anyone is told, so slow spies don't hold on to it
+            List<Runnable> actions = new ArrayList<>(onSuccessActions);
+            forgetTransaction();
+            BigBrother.inform(altered);
+            actions.forEach(Runnable::run);
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Each row altered in the transaction, with the object altering it, once for every object altering it.
+     */
+    private List<Pair<BigBrother.RowIdentifier, Object>> collectAlteredRows() {
+        List<Pair<BigBrother.RowIdentifier, Object>> altered = new ArrayList<>();
+        alteredSuspects.forEach(suspect -> BigBrother.findWhoMightBeInterested(suspect).forEach(row -> altered.add(new Pair<>(row, suspect))));
+        altered.addAll(alteredRows);
+        return altered;
+    }
+
+    private void forgetTransaction() {
+        onSuccessActions.clear();
+        alteredSuspects.clear();
+        alteredRows.clear();
+        savepoints.clear();
+        rollbackOnly = null;
+        if (identityMap != null) identityMap.clear();
+        writtenTables.clear();
+        wroteAnywhere = false;
+    }
+
+    /**
+     * Marks a point in the transaction to roll back to, without rolling back what came before it.
+     */
+    public Savepoint setSavepoint() {
+        try {
+            Savepoint savepoint = connection().setSavepoint();
+            savepoints.put(savepoint, alteredSuspects.size());
+            return savepoint;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void releaseSavepoint(Savepoint savepoint) {
+        try {
+            connection().releaseSavepoint(savepoint);
+            savepoints.remove(savepoint);
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Undoes what was done since the savepoint was set. Spies are not told about rows inserted, updated or deleted
+     * since then, but rows only linked or unlinked since then, and tables written to, are still reported as altered.
+     */
+    public void rollbackTo(Savepoint savepoint) {
+        try {
+            connection().rollback(savepoint);
+            Integer altered = savepoints.remove(savepoint);
+            if (altered != null) alteredSuspects.subList(altered, alteredSuspects.size()).clear();
+            if (rollbackOnly != null && rollbackOnly.contains(savepoint)) rollbackOnly = null;
+            if (identityMap != null) identityMap.clear(); //objects may hold values rolled back
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Makes the transaction roll back instead of commit, as Transactional does when a call joining it throws,
+     * so what the call did before throwing is not committed even if the caller catches the exception.
+     * Rolling back to a savepoint set before this clears the mark.
+     */
+    public void setRollbackOnly() {
+        if (rollbackOnly == null) rollbackOnly = new HashSet<>(savepoints.keySet());
+    }
+
+    public boolean isRollbackOnly() {
+        return rollbackOnly != null;
+    }
+
     public void rollback() {
         try {
-            if (connection == null) return;
+            if (connection == null) { //never used, nothing to roll back
+                forgetTransaction();
+                return;
+            }
             if (connection.isClosed()) return;
             connection.rollback();
-            onSuccessActions.clear();
+            forgetTransaction();
+            statements.closeAll();
             connection.close();
         } catch (SQLException e) {
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Keep the rows this DB loads and writes by primary key, so each row is loaded once and is the same object
+     * every time it is selected. Selecting a known row by its primary key is then answered without going to the database.
+     * Use when a transaction loads the same rows many times. Rows changed with updateOrInsert can not be tracked,
+     * so all rows are forgotten when it is used.
+     */
+    public void setIdentityMapEnabled(boolean enabled) {
+        if (!enabled) identityMap = null;
+        else if (identityMap == null) identityMap = new IdentityMap();
+    }
+
+    public boolean isIdentityMapEnabled() {
+        return identityMap != null;
+    }
+
+    /**
+     * Whether new DB instances, like those made by Transactional, start with the identity map enabled.
+     */
+    public static void setIdentityMapByDefault(boolean enabled) {
+        identityMapByDefault = enabled;
+    }
+
+    public long getIdentityMapHits() {
+        return identityMap == null ? 0 : identityMap.getHits();
+    }
+
+    public long getIdentityMapMisses() {
+        return identityMap == null ? 0 : identityMap.getMisses();
+    }
+
+    /**
+     * How many statements this DB has reused, rather than prepared anew.
+     */
+    public long getStatementCacheHits() {
+        return statements == null ? 0 : statements.getHits();
+    }
+
+    public long getStatementCacheMisses() {
+        return statements == null ? 0 : statements.getMisses();
+    }
+
+    /**
+     * Statement reuse across all DB instances since startup.
+     */
+    public static long getTotalStatementCacheHits() {
+        return StatementCache.getTotalHits();
+    }
+
+    public static long getTotalStatementCacheMisses() {
+        return StatementCache.getTotalMisses();
+    }
+
+    /**
+     * The DB's connection, taken from the pool if the DB has not used one yet.
+     */
     public Connection getConnection() {
+        return connection();
+    }
+
+    /**
+     * Whether the DB was made by readOnly, so it reads from a replica and can not write.
+     */
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * The session whose writes the DB reads, and that is told when it commits a write.
+     */
+    public Session getSession() {
+        return session;
+    }
+
+    /**
+     * Makes the DB belong to another session than the one current on the thread that created it.
+     * Set it before the DB is first used, as a read only DB picks its server when it takes a connection.
+     */
+    public void setSession(Session session) {
+        this.session = session;
+    }
+
+    /**
+     * Whether the DB has taken a connection from the pool.
+     */
+    public boolean hasConnection() {
+        return connection != null;
+    }
+
+    //the time spent waiting for the pool is reported with the first statement run on the connection
+    private Connection connection() {
+        if (connection == null) {
+            long started = QueryStats.now();
+            connection = readOnly ? DBFunctions.getReadOnlyConnection(session) : DBFunctions.getConnection();
+            if (started != QueryStats.NOT_TIMED) connectionWait = System.nanoTime() - started;
+            statements = new StatementCache(connection, STATEMENT_CACHE_SIZE);
+        }
         return connection;
     }
+
+    private StatementCache statements() {
+        connection();
+        return statements;
+    }
 }
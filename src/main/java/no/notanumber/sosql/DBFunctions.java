@@ -1,21 +1,26 @@
 package no.notanumber.sosql;
 
+import com.mchange.v2.c3p0.C3P0ProxyConnection;
 import com.mchange.v2.c3p0.ComboPooledDataSource;
-import org.jgrapht.alg.DijkstraShortestPath;
-import org.jgrapht.graph.DefaultWeightedEdge;
-import org.jgrapht.graph.SimpleWeightedGraph;
+import org.postgresql.PGConnection;
 
+import javax.sql.DataSource;
 import java.beans.PropertyVetoException;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
 import static java.util.stream.Collectors.toList;
 import static org.apache.commons.lang.StringUtils.join;
+import static org.apache.commons.lang.StringUtils.trim;
 
 public class DBFunctions {
 
@@ -23,35 +28,49 @@ public class DBFunctions {
     public static final List<Class<Integer>> INT_TYPES = asList(Integer.class, Integer.TYPE);
     public static final List<Class<Long>> LONG_TYPES = asList(Long.class, Long.TYPE);
     public static final List<Class<Boolean>> BOOL_TYPES = asList(Boolean.class, Boolean.TYPE);
-    private static SimpleWeightedGraph<String, JoinEdge> tableGraph = new SimpleWeightedGraph<String, JoinEdge>(JoinEdge.class) {{
-        ColumnHelper.tables.forEach(this::addVertex);
-        ColumnHelper.columns.stream()
-                .filter(col -> col.type == ColumnType.ForeignKey)
-                .forEach(col -> {
-                    Join join = new Join(ColumnHelper.getPrimaryKey(col.joinedTo).get(), col);
-                    JoinEdge joinEdge = new JoinEdge(join);
-                    addEdge(col.table, col.joinedTo, joinEdge);
-
-                    /*
-                    the child table is linked to DaycareCenter via a foreign key
-                    So is the grownup table. The child and grownup tables are linked together
-                    via a many-to-many join table. When finding the shortest path from child to
-                    grownup, I want it to find the many-to-many link, not the path via
-                    daycare center. Without a weighted graph, the two paths would be seen
-                    as equally long.  Giving many-to-many edges half the weight of others,
-                    leads to it preferring the many-to-many link in this case. As it should.
-                     */
-
-                    boolean manyToManyLink = !ColumnHelper.getPrimaryKey(col.table).isPresent();
-                    int weight = manyToManyLink ? 1 : 2;
-                    setEdgeWeight(joinEdge, weight);
-                });
-    }};
-
-    public static ComboPooledDataSource pool;
+    /**
+     * The primary's connections. A DataSource since any pool can be used, it was a ComboPooledDataSource before,
+     * so code using it as one must now cast it, or keep the ComboPooledDataSource it set up.
+     */
+    public static DataSource pool;
+    private static final List<DataSource> replicas = new CopyOnWriteArrayList<>();
+    private static final AtomicInteger nextReplica = new AtomicInteger();
+    private static volatile int readOnlyIsolation = -1;
+    private static volatile long readYourWritesMillis = 0;
+
     public static void setupConnectionPool(String connectionString, String username, String password, int maxConnections) {
+        pool = createPool(connectionString, username, password, maxConnections);
+    }
+
+    /**
+     * Takes connections from the given DataSource, any JDBC pool, or the ConnectionPool that comes with sosql.
+     */
+    public static void setDataSource(DataSource dataSource) {
+        pool = dataSource;
+    }
+
+    public static DataSource getDataSource() {
+        return pool;
+    }
+
+    /**
+     * Adds a pool of connections to a read replica. Read only DBs take their connections from the replicas in turn.
+     */
+    public static void setupReplicaPool(String connectionString, String username, String password, int maxConnections) {
+        addReplica(createPool(connectionString, username, password, maxConnections));
+    }
+
+    public static void addReplica(DataSource replica) {
+        replicas.add(replica);
+    }
+
+    public static void removeReplicas() {
+        replicas.clear();
+    }
+
+    private static ComboPooledDataSource createPool(String connectionString, String username, String password, int maxConnections) {
         try {
-            pool = new ComboPooledDataSource();
+            ComboPooledDataSource pool = new ComboPooledDataSource();
             pool.setDriverClass("org.postgresql.Driver");
             pool.setJdbcUrl(connectionString);
             pool.setUser(username);
@@ -59,6 +78,7 @@ public class DBFunctions {
             pool.setInitialPoolSize(maxConnections / 2);
             pool.setMaxPoolSize(maxConnections);
             pool.setMinPoolSize(1);
+            return pool;
         } catch (PropertyVetoException e) {
             throw new RuntimeException(e);
         }
@@ -74,6 +94,161 @@ public class DBFunctions {
         }
     }
 
+    /**
+     * A read only connection to a replica, or to the primary when there are no replicas,
+     * or when the thread's session committed a write less than the read your writes window ago.
+     */
+    public static Connection getReadOnlyConnection() {
+        return getReadOnlyConnection(Session.current());
+    }
+
+    public static Connection getReadOnlyConnection(Session session) {
+        try {
+            boolean recentWrite = readYourWritesMillis > 0 && session.wroteWithin(readYourWritesMillis);
+            Connection connection = replicas.isEmpty() || recentWrite
+                    ? pool.getConnection()
+                    : replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size())).getConnection();
+            connection.setAutoCommit(false);
+            connection.setReadOnly(true);
+            if (readOnlyIsolation != -1) connection.setTransactionIsolation(readOnlyIsolation);
+            return connection;
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The isolation level of read only transactions, one of the Connection.TRANSACTION_ constants,
+     * or -1 to leave it as the pool has it.
+     */
+    public static void setReadOnlyIsolation(int level) {
+        readOnlyIsolation = level;
+    }
+
+    /**
+     * For how long after a session commits a write its read only DBs read from the primary, so it sees what it wrote
+     * before the replicas have caught up. 0, the default, reads from replicas at once. See Session.
+     */
+    public static void setReadYourWritesMillis(long millis) {
+        readYourWritesMillis = millis;
+    }
+
+    static SelectPlan makeSelectPlan(Class<?> clazz, List<OrderBy> orderBy, boolean limited, boolean seek, Where... whereClause) {
+        String select = makeSelect(clazz, orderBy, whereClause);
+
+        Set<String> tables = ColumnHelper.getTables(clazz, whereClause);
+        Collection<Join> joins = new ArrayList<>();
+        if (tables.size() > 1) {
+            joins.addAll(findJoins(tables));
+            joins.forEach(join -> {
+                tables.add(join.primary.table);
+                tables.add(join.foreign.table);
+            });
+        }
+
+        String from = " FROM " + join(tables, ", ");
+        String where = makeWhere(joins, whereClause);
+        if (seek) where = (where.isEmpty() ? "WHERE " : where + " AND ") + makeSeek(orderBy);
+        String groupBy = makeGroupBy(clazz, orderBy);
+        String orderByStr = makeOrderBy(orderBy);
+
+        String sql = join(asList(select, from, where, groupBy, orderByStr), " ");
+        if (limited) sql += " LIMIT ? OFFSET ?";
+        Field[] seekFields = seek ? SelectPlan.seekFields(clazz, orderBy) : new Field[0];
+        return new SelectPlan(sql, tables, seekFields, limited, whereClause);
+    }
+
+    static SelectPlan makeSelectPlan(DatabaseColumn column, List<OrderBy> orderBy, boolean limited, Where... whereClause) {
+        Set<String> selectThese = new HashSet<>();
+        orderBy.forEach(order -> selectThese.add(order.getColumn().columnName));
+        selectThese.add(column.columnName);
+        String select = "SELECT DISTINCT " + join(selectThese, ", ");
+        Set<String> tables = ColumnHelper.getTables(column.clazz, whereClause);
+        tables.add(column.table);
+        Collection<Join> joins = new ArrayList<>();
+        if (tables.size() > 1) {
+            joins.addAll(findJoins(tables));
+            joins.forEach(join -> {
+                tables.add(join.primary.table);
+                tables.add(join.foreign.table);
+            });
+        }
+
+        String from = " FROM " + join(tables, ",");
+        String where = makeWhere(joins, whereClause);
+        String orderByStr = makeOrderBy(orderBy);
+        String sql = join(asList(trim(select), trim(from), trim(where), trim(orderByStr)), " ").replace("  ", " ");
+        if (limited) sql += " LIMIT ? OFFSET ?";
+        return new SelectPlan(sql, tables, new Field[0], limited, whereClause);
+    }
+
+    /**
+     * The condition for rows coming after a given row in the order given by orderBy.
+     * When all columns are sorted the same way, a row comparison: (a, b) > (?, ?).
+     * Otherwise spelled out: (a > ? OR (a = ? AND b < ?)).
+     */
+    public static String makeSeek(List<OrderBy> orderBy) {
+        if (orderBy.isEmpty()) throw new IllegalArgumentException("Need at least one column to order by to find the rows after another");
+        List<String> columns = orderBy.stream().map(order -> order.getColumn().columnName).collect(toList());
+        if (sameDirection(orderBy)) {
+            return "(" + join(columns, ", ") + ") " + after(orderBy.get(0)) + " (" + join(Collections.nCopies(columns.size(), "?"), ", ") + ")";
+        }
+        List<String> alternatives = new ArrayList<>();
+        for (int i = 0; i < orderBy.size(); i++) {
+            List<String> parts = columns.subList(0, i).stream().map(col -> col + " = ?").collect(toList());
+            parts.add(columns.get(i) + " " + after(orderBy.get(i)) + " ?");
+            alternatives.add(parts.size() == 1 ? parts.get(0) : "(" + join(parts, " AND ") + ")");
+        }
+        return "(" + join(alternatives, " OR ") + ")";
+    }
+
+    private static String after(OrderBy order) {
+        return order.getOrder().equals("ASC") ? ">" : "<";
+    }
+
+    static boolean sameDirection(List<OrderBy> orderBy) {
+        return orderBy.stream().map(OrderBy::getOrder).distinct().count() <= 1;
+    }
+
+    public static String makeOrderBy(Collection<OrderBy> orderBy) {
+        List<String> orderByStrings = orderBy.stream().map(by -> by.getColumn().columnName + " " + by.getOrder()).collect(toList());
+        return orderBy.isEmpty() ? "" : "ORDER BY " + join(orderByStrings, ",");
+    }
+
+    public static LruCache<?, ?> getSelectPlanCache() {
+        return SelectPlan.cache;
+    }
+
+    /**
+     * The postgres connection behind a pooled connection, for postgres specific features like COPY.
+     */
+    public static PGConnection getPGConnection(Connection connection) throws SQLException {
+        if (connection instanceof PGConnection) return (PGConnection) connection;
+        if (connection instanceof C3P0ProxyConnection) {
+            try {
+                return (PGConnection) ((C3P0ProxyConnection) connection).rawConnectionOperation(RAW_CONNECTION, null, new Object[]{C3P0ProxyConnection.RAW_CONNECTION});
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        return connection.unwrap(PGConnection.class);
+    }
+
+    private static final Method RAW_CONNECTION;
+    static {
+        try {
+            RAW_CONNECTION = DBFunctions.class.getDeclaredMethod("rawConnection", Object.class);
+            RAW_CONNECTION.setAccessible(true);
+        } catch (NoSuchMethodException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    //c3p0 calls this with the raw connection in place of C3P0ProxyConnection.RAW_CONNECTION
+    private static Object rawConnection(Object connection) {
+        return connection;
+    }
+
     public static String makeSelect(Class<?> clazz, Collection<OrderBy> orderBy, Where... whereClause) {
         Set<String> sql = new HashSet<>();
         List<Column> allColumns = ColumnHelper.getMappedFields(clazz).stream().map(field -> field.getAnnotation(Column.class)).collect(toList());
@@ -126,24 +301,7 @@ public class DBFunctions {
     }
 
     public static Collection<Join> findJoins(Collection<String> tables) {
-        Set<Join> joins = new HashSet<>();
-        Set<Pair<String, String>> alreadyTried = new HashSet<>();
-        for (String a : tables) {
-            for (String b: tables) {
-                if ( a == b || !alreadyTried.add(new Pair<>(a, b))) continue;
-                Stream<Join> jonStream = new DijkstraShortestPath<>(tableGraph, a, b).getPathEdgeList()
-                        .stream().map(joinEdge -> joinEdge.join);
-                joins.addAll(jonStream.collect(toList()));
-            }
-        }
-        return joins;
-    }
-
-    private static class JoinEdge extends DefaultWeightedEdge {
-        private final Join join;
-        public JoinEdge(Join join) {
-            this.join = join;
-        }
+        return JoinPlanner.findJoins(tables);
     }
 
     public static <A, B> Optional<String> findManyToManyString(A from, B to) {
@@ -0,0 +1,201 @@
+package no.notanumber.sosql;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Rows shared by all DB instances, for tables that are read much more often than they are written,
+ * like lookup data and configuration. Caching is turned on per table with enable.
+ * <p/>
+ * DB.select answers a search for primary key = value from here, and keeps the rows any select of a class in a cached
+ * table returns. Entries are held for at most timeToLive, and the least recently used ones are evicted when a table
+ * has more than maxSize rows. When a transaction commits, BigBrother tells the cache which rows it changed,
+ * and those are evicted before commit returns, so no one reads a row older than the last commit in this process.
+ * Changes made by other processes are only seen when entries expire. Read only DBs, which read from replicas,
+ * do not use the cache.
+ * <p/>
+ * Callers get their own copy of a cached row, as rows are changed in place by update.
+ * Like the identity map, only classes mapped to a single table, with a primary key and no aggregated columns, are cached.
+ */
+public class EntityCache {
+
+    private static final ConcurrentMap<String, Region> regions = new ConcurrentHashMap<>();
+
+    static {
+        BigBrother.addObserver((row, suspect) -> {
+            Region region = regions.get(row.column.table);
+            if (region != null && row.column.type == ColumnType.PrimaryKey) region.invalidate(row.value);
+        });
+    }
+
+    public static void enable(String table, int maxSize, Duration timeToLive) {
+        regions.put(table, new Region(maxSize, timeToLive));
+    }
+
+    public static void disable(String table) {
+        regions.remove(table);
+    }
+
+    public static boolean isEnabled(String table) {
+        return regions.containsKey(table);
+    }
+
+    public static Set<String> getTables() {
+        return new HashSet<>(regions.keySet());
+    }
+
+    /**
+     * Evicts all rows, for when rows may have been changed without BigBrother knowing which.
+     */
+    public static void clear() {
+        regions.values().forEach(Region::clear);
+    }
+
+    public static long getHits(String table) {
+        return region(table).map(r -> r.hits.sum()).orElse(0L);
+    }
+
+    public static long getMisses(String table) {
+        return region(table).map(r -> r.misses.sum()).orElse(0L);
+    }
+
+    /**
+     * Rows evicted because the table was full, or because they had expired.
+     */
+    public static long getEvictions(String table) {
+        return region(table).map(r -> r.entries.getEvictions() + r.expired.sum()).orElse(0L);
+    }
+
+    /**
+     * Rows evicted because they were changed.
+     */
+    public static long getInvalidations(String table) {
+        return region(table).map(r -> r.invalidations.sum()).orElse(0L);
+    }
+
+    public static int size(String table) {
+        return region(table).map(r -> r.entries.size()).orElse(0);
+    }
+
+    static boolean isCached(Class<?> clazz) {
+        return !regions.isEmpty() && IdentityMap.canHold(clazz) && regions.containsKey(ColumnHelper.getMainTableForClass(clazz));
+    }
+
+    /**
+     * A copy of the cached row, or null.
+     */
+    static <T> T get(Class<T> clazz, Object id) {
+        Region region = regions.get(ColumnHelper.getMainTableForClass(clazz));
+        if (region == null) return null;
+        Object found = region.get(clazz, id);
+        return found == null ? null : clazz.cast(ColumnHelper.getMappedClass(clazz).shallowCopy(found));
+    }
+
+    /**
+     * Counts changes to the table. Read before loading rows, and pass to putAll, so rows loaded before
+     * a change was committed, but put after it was evicted, are not kept.
+     */
+    static long version(Class<?> clazz) {
+        Region region = regions.get(ColumnHelper.getMainTableForClass(clazz));
+        return region == null ? 0 : region.version.get();
+    }
+
+    static <T> void putAll(Class<T> clazz, List<T> loaded, long version) {
+        Region region = regions.get(ColumnHelper.getMainTableForClass(clazz));
+        if (region == null || loaded.isEmpty()) return;
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        region.classes.add(clazz);
+        for (T row : loaded) {
+            Object id = DBFunctions.get(mapped.primaryKeyField, row);
+            if (id != null) region.put(new Key(clazz, id), mapped.shallowCopy(row), version);
+        }
+    }
+
+    private static Optional<Region> region(String table) {
+        return Optional.ofNullable(regions.get(table));
+    }
+
+    private static class Region {
+        final LruCache<Key, Entry> entries;
+        final long timeToLive;
+        final Set<Class<?>> classes = new CopyOnWriteArraySet<>();
+        final AtomicLong version = new AtomicLong();
+        final LongAdder hits = new LongAdder();
+        final LongAdder misses = new LongAdder();
+        final LongAdder expired = new LongAdder();
+        final LongAdder invalidations = new LongAdder();
+
+        Region(int maxSize, Duration timeToLive) {
+            this.entries = new LruCache<>(maxSize);
+            this.timeToLive = timeToLive.toNanos();
+        }
+
+        Object get(Class<?> clazz, Object id) {
+            Key key = new Key(clazz, id);
+            Entry entry = entries.get(key);
+            if (entry != null && System.nanoTime() - entry.expires > 0) {
+                entries.remove(key);
+                expired.increment();
+                entry = null;
+            }
+            (entry == null ? misses : hits).increment();
+            return entry == null ? null : entry.row;
+        }
+
+        void put(Key key, Object row, long loadedAt) {
+            Entry entry = new Entry(row, System.nanoTime() + timeToLive);
+            //checked under the same lock invalidate evicts under, so an invalidation is either seen here or evicts this entry
+            synchronized (this) {
+                if (version.get() == loadedAt) entries.put(key, entry);
+            }
+        }
+
+        synchronized void invalidate(Object id) {
+            version.incrementAndGet();
+            for (Class<?> clazz : classes) {
+                entries.remove(new Key(clazz, id));
+            }
+            invalidations.increment();
+        }
+
+        synchronized void clear() {
+            version.incrementAndGet();
+            entries.clear();
+        }
+    }
+
+    private static class Entry {
+        final Object row;
+        final long expires;
+
+        Entry(Object row, long expires) {
+            this.row = row;
+            this.expires = expires;
+        }
+    }
+
+    private static class Key {
+        final Class<?> clazz;
+        final Object id;
+
+        Key(Class<?> clazz, Object id) {
+            this.clazz = clazz;
+            this.id = id instanceof Integer || id instanceof Short ? ((Number) id).longValue() : id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && clazz == ((Key) obj).clazz && Objects.equals(id, ((Key) obj).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * clazz.hashCode() + Objects.hashCode(id);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package no.notanumber.sosql;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded values in power of two buckets. Recording is a few atomic increments, no locks or allocation.
+ * Percentiles are approximate: they return the upper bound of the bucket the percentile falls in.
+ */
+public class Histogram {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(65);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSum() {
+        return sum.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) getSum() / n;
+    }
+
+    public long getPercentile(double percentile) {
+        long n = getCount();
+        if (n == 0) return 0;
+        long wanted = (long) Math.ceil(n * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= wanted) return Math.min(i == 0 ? 0 : (1L << i) - 1, getMax());
+        }
+        return getMax();
+    }
+}
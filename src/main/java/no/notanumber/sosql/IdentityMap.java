@@ -0,0 +1,114 @@
+package no.notanumber.sosql;
+
+import java.lang.reflect.Field;
+import java.util.*;
+
+/**
+ * The rows one DB has loaded or written in its transaction, by table and primary key.
+ * A row is then the same object every time it is selected as the same class, and selecting a row by its primary key
+ * does not go to the database once the row is known.
+ * Only classes mapped to a single table, with a primary key and no aggregated columns, are kept:
+ * for other classes an object does not stand for one row.
+ * Several classes may map the same table, so writing a row as one class forgets the objects of the others for that row.
+ * Not thread safe, like the DB that owns it.
+ */
+class IdentityMap {
+
+    private final Map<BigBrother.RowIdentifier, Map<Class<?>, Object>> rows = new HashMap<>();
+    private long hits;
+    private long misses;
+
+    static boolean canHold(Class<?> clazz) {
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        return mapped.primaryKeyField != null
+                && mapped.tables.size() == 1
+                && !mapped.aggregated;
+    }
+
+    /**
+     * The primary key searched for, when the where clause is nothing but primary key = value, otherwise null.
+     */
+    static Object primaryKeySearchedFor(Class<?> clazz, Where... whereClause) {
+        if (whereClause == null || whereClause.length != 1 || !canHold(clazz)) return null;
+        Where where = whereClause[0];
+        if (where.value == null || !"=".equals(where.operator.trim())) return null;
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        if (mapped.primaryKeyField == null || ColumnHelper.getColumn(mapped.primaryKeyField) != where.column) return null;
+        return key(where.value);
+    }
+
+    <T> T get(Class<T> clazz, Object id) {
+        Map<Class<?>, Object> ofRow = rows.get(row(ColumnHelper.getColumn(ColumnHelper.getMappedClass(clazz).primaryKeyField), id));
+        Object found = ofRow == null ? null : ofRow.get(clazz);
+        if (found == null) misses++;
+        else hits++;
+        return clazz.cast(found);
+    }
+
+    /**
+     * Replaces rows already known with the known objects, and remembers the rest.
+     */
+    <T> List<T> merge(Class<T> clazz, List<T> loaded) {
+        if (loaded.isEmpty() || !canHold(clazz)) return loaded;
+        Field pk = ColumnHelper.getMappedClass(clazz).primaryKeyField;
+        DatabaseColumn pkColumn = ColumnHelper.getColumn(pk);
+        List<T> merged = new ArrayList<>(loaded.size());
+        for (T row : loaded) {
+            Map<Class<?>, Object> ofRow = rows.computeIfAbsent(row(pkColumn, DBFunctions.get(pk, row)), id -> new HashMap<>());
+            merged.add(clazz.cast(ofRow.computeIfAbsent(clazz, c -> row)));
+        }
+        return merged;
+    }
+
+    /**
+     * Remembers an object just inserted or updated, in place of any other object for the same row.
+     */
+    void put(Object row) {
+        remove(row);
+        Class<?> clazz = row.getClass();
+        if (!canHold(clazz)) return;
+        Field pk = ColumnHelper.getMappedClass(clazz).primaryKeyField;
+        Object id = DBFunctions.get(pk, row);
+        if (id == null) return;
+        Map<Class<?>, Object> ofRow = new HashMap<>();
+        ofRow.put(clazz, row);
+        rows.put(row(ColumnHelper.getColumn(pk), id), ofRow);
+    }
+
+    /**
+     * Forgets the objects of every class for the rows the object maps, in all the tables it has primary keys for.
+     */
+    void remove(Object row) {
+        MappedClass mapped = ColumnHelper.getMappedClass(row.getClass());
+        for (int i = 0; i < mapped.fields.size(); i++) {
+            if (mapped.columns.get(i).type != ColumnType.PrimaryKey) continue;
+            Object id = DBFunctions.get(mapped.fields.get(i), row);
+            if (id != null) rows.remove(row(mapped.columns.get(i), id));
+        }
+    }
+
+    void clear() {
+        rows.clear();
+    }
+
+    int size() {
+        return rows.values().stream().mapToInt(Map::size).sum();
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    private static BigBrother.RowIdentifier row(DatabaseColumn pk, Object id) {
+        return new BigBrother.RowIdentifier(pk, key(id));
+    }
+
+    //primary keys are longs, but may be searched for with ints
+    private static Object key(Object id) {
+        return id instanceof Integer || id instanceof Short ? ((Number) id).longValue() : id;
+    }
+}
@@ -0,0 +1,93 @@
+package no.notanumber.sosql;
+
+import org.jgrapht.Graphs;
+import org.jgrapht.graph.DefaultWeightedEdge;
+import org.jgrapht.graph.SimpleWeightedGraph;
+import org.jgrapht.traverse.ClosestFirstIterator;
+
+import java.util.*;
+
+/**
+ * Finds the joins needed to connect a set of tables.
+ * The tables never change after startup, so the shortest join path between every pair of tables
+ * is found once, and the joins for each set of tables asked for are cached.
+ */
+class JoinPlanner {
+
+    private static final SimpleWeightedGraph<String, JoinEdge> tableGraph = new SimpleWeightedGraph<String, JoinEdge>(JoinEdge.class) {{
+        ColumnHelper.tables.forEach(this::addVertex);
+        ColumnHelper.columns.stream()
+                .filter(col -> col.type == ColumnType.ForeignKey)
+                .forEach(col -> {
+                    Join join = new Join(ColumnHelper.getPrimaryKey(col.joinedTo).get(), col);
+                    JoinEdge joinEdge = new JoinEdge(join);
+                    addEdge(col.table, col.joinedTo, joinEdge);
+                    setEdgeWeight(joinEdge, weight(col));
+                });
+    }};
+
+    /**
+     * Foreign keys from a table without a primary key, a many-to-many link table, weigh half as much as others.
+     * Two tables that both refer to a third, and are also linked to each other through a link table, are then
+     * joined through the link table rather than through the table they both refer to.
+     */
+    private static int weight(DatabaseColumn foreignKey) {
+        return ColumnHelper.getPrimaryKey(foreignKey.table).isPresent() ? 2 : 1;
+    }
+
+    private static final Map<Pair<String, String>, List<Join>> shortestPaths = findAllShortestPaths();
+    private static final LruCache<Set<String>, Set<Join>> joinsByTables = new LruCache<>(1000);
+
+    /**
+     * Runs Dijkstra once from every table, and reads the path to every other table out of the resulting
+     * shortest path tree. The path between a and b is the one found when starting from whichever of them comes first.
+     */
+    private static Map<Pair<String, String>, List<Join>> findAllShortestPaths() {
+        Map<Pair<String, String>, List<Join>> paths = new HashMap<>();
+        for (String from : tableGraph.vertexSet()) {
+            ClosestFirstIterator<String, JoinEdge> tree = new ClosestFirstIterator<>(tableGraph, from);
+            tree.setCrossComponentTraversal(false);
+            while (tree.hasNext()) {
+                String to = tree.next();
+                Pair<String, String> pair = new Pair<>(from, to);
+                if (to.equals(from) || paths.containsKey(pair)) continue;
+                List<Join> path = new ArrayList<>();
+                for (String at = to; !at.equals(from); ) {
+                    JoinEdge edge = tree.getSpanningTreeEdge(at);
+                    path.add(0, edge.join);
+                    at = Graphs.getOppositeVertex(tableGraph, edge, at);
+                }
+                paths.put(pair, Collections.unmodifiableList(path));
+            }
+        }
+        return paths;
+    }
+
+    static Set<Join> findJoins(Collection<String> tables) {
+        return joinsByTables.get(new HashSet<>(tables), JoinPlanner::joinAll);
+    }
+
+    private static Set<Join> joinAll(Set<String> tables) {
+        Set<Join> joins = new HashSet<>();
+        for (String a : tables) {
+            for (String b : tables) {
+                if (a.equals(b)) continue;
+                List<Join> path = shortestPaths.get(new Pair<>(a, b));
+                if (path == null) throw new IllegalArgumentException("No way to join the tables " + a + " and " + b);
+                joins.addAll(path);
+            }
+        }
+        return Collections.unmodifiableSet(joins);
+    }
+
+    static LruCache<?, ?> getCache() {
+        return joinsByTables;
+    }
+
+    private static class JoinEdge extends DefaultWeightedEdge {
+        private final Join join;
+        public JoinEdge(Join join) {
+            this.join = join;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package no.notanumber.sosql;
+
+public class Limit {
+
+    public final int rows;
+    public final long offset;
+
+    public Limit(int rows) {
+        this(rows, 0);
+    }
+
+    /**
+     * Skips offset rows before returning at most rows rows. The database still reads the skipped rows,
+     * see DB.selectPage for paging through large tables.
+     */
+    public Limit(int rows, long offset) {
+        this.rows = rows;
+        this.offset = offset;
+    }
+
+    @Override
+    public String toString() {
+        return "LIMIT " + rows + " OFFSET " + offset;
+    }
+}
@@ -0,0 +1,110 @@
+package no.notanumber.sosql;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * A thread safe map that holds at most maxSize entries, evicting the least recently used one when full.
+ * Keeps count of hits, misses and evictions.
+ */
+public class LruCache<K, V> {
+
+    private final LinkedHashMap<K, V> entries;
+    private volatile int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public LruCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                boolean full = size() > LruCache.this.maxSize;
+                if (full) evictions.increment();
+                return full;
+            }
+        };
+    }
+
+    public V get(K key) {
+        V value;
+        synchronized (entries) {
+            value = entries.get(key);
+        }
+        (value == null ? misses : hits).increment();
+        return value;
+    }
+
+    /**
+     * Returns the cached value, or creates and caches one. The value is created outside the lock,
+     * so two threads missing at the same time may both create it; the first one stored wins.
+     */
+    public V get(K key, Function<K, V> create) {
+        V value = get(key);
+        if (value != null) return value;
+        V created = create.apply(key);
+        synchronized (entries) {
+            V existing = entries.putIfAbsent(key, created);
+            return existing != null ? existing : created;
+        }
+    }
+
+    public void put(K key, V value) {
+        synchronized (entries) {
+            entries.put(key, value);
+        }
+    }
+
+    public void remove(K key) {
+        synchronized (entries) {
+            entries.remove(key);
+        }
+    }
+
+    public void removeIf(Predicate<Map.Entry<K, V>> filter) {
+        synchronized (entries) {
+            entries.entrySet().removeIf(filter);
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "size=" + size() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+    }
+}
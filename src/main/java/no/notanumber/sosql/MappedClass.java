@@ -0,0 +1,75 @@
+package no.notanumber.sosql;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Everything sosql needs to know about a class with @Column fields, resolved once per class.
+ * Instances are created and cached by ColumnHelper.
+ */
+class MappedClass {
+
+    final Class<?> clazz;
+    final List<Field> fields;
+    final List<DatabaseColumn> columns;
+    final Set<String> tables;
+    final Field primaryKeyField;
+    final List<String> primaryKeyTables;
+    final boolean aggregated;
+    private volatile Constructor<?> noArgs;
+
+    MappedClass(Class<?> clazz) {
+        this.clazz = clazz;
+        List<Field> fields = new ArrayList<>();
+        for (Class<?> c = clazz; c != null; c = c.getSuperclass()) {
+            asList(c.getDeclaredFields()).stream()
+                    .filter(f -> f.isAnnotationPresent(Column.class))
+                    .forEach(fields::add);
+        }
+        fields.forEach(f -> f.setAccessible(true));
+        this.fields = Collections.unmodifiableList(fields);
+        this.columns = Collections.unmodifiableList(fields.stream().map(ColumnHelper::getColumn).collect(toList()));
+        this.tables = Collections.unmodifiableSet(new HashSet<>(columns.stream().map(c -> c.table).collect(toList())));
+
+        Field pk = null;
+        List<String> pkTables = new ArrayList<>();
+        for (int i = 0; i < fields.size(); i++) {
+            if (columns.get(i).type == ColumnType.PrimaryKey) {
+                if (pk == null) pk = fields.get(i);
+                pkTables.add(columns.get(i).table);
+            }
+        }
+        this.primaryKeyField = pk;
+        this.primaryKeyTables = Collections.unmodifiableList(pkTables);
+        this.aggregated = fields.stream().anyMatch(f -> f.getAnnotation(Column.class).function() != Function.NONE);
+    }
+
+    /**
+     * A new instance with the same values in all mapped fields. Values are shared, not copied.
+     */
+    Object shallowCopy(Object original) {
+        try {
+            if (noArgs == null) {
+                Constructor<?> constructor = clazz.getDeclaredConstructor();
+                constructor.setAccessible(true);
+                noArgs = constructor;
+            }
+            Object copy = noArgs.newInstance();
+            for (Field f : fields) {
+                if (!Modifier.isStatic(f.getModifiers())) f.set(copy, f.get(original));
+            }
+            return copy;
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Could not copy " + clazz.getName(), e);
+        }
+    }
+
+    Optional<Field> getPrimaryKeyField() {
+        return Optional.ofNullable(primaryKeyField);
+    }
+}
@@ -0,0 +1,162 @@
+package no.notanumber.sosql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tells spies about altered rows on a pool of threads, instead of on the thread that committed.
+ * Without coalescing every notification is delivered. When coalescing, a row waits coalesceMillis before its spies are told,
+ * and changes to the row while it waits, or while it is queued, are collapsed into one notification carrying the latest suspect.
+ * At most maxPending notifications wait at once; further ones are dropped and counted when full,
+ * rather than holding up the committing thread.
+ */
+class NotificationDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(NotificationDispatcher.class);
+
+    private final ConcurrentMap<BigBrother.RowIdentifier, Object> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final int maxPending;
+    private final long coalesceMillis;
+    private final ThreadPoolExecutor workers;
+    private final ScheduledExecutorService timer;
+    private final LongAdder dispatched = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    NotificationDispatcher(int threads, int maxPending, long coalesceMillis) {
+        this.maxPending = maxPending;
+        this.coalesceMillis = coalesceMillis;
+        this.workers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(maxPending), daemons("BigBrother-notifier"));
+        this.timer = coalesceMillis > 0 ? Executors.newSingleThreadScheduledExecutor(daemons("BigBrother-coalescer")) : null;
+    }
+
+    private static ThreadFactory daemons(String name) {
+        AtomicInteger created = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    void dispatch(BigBrother.RowIdentifier row, Object suspect) {
+        if (timer == null) {
+            dispatchEach(row, suspect);
+            return;
+        }
+        boolean[] added = new boolean[1];
+        boolean[] full = new boolean[1];
+        pending.compute(row, (key, waiting) -> {
+            if (waiting != null) return suspect;
+            if (pendingCount.get() >= maxPending) {
+                full[0] = true;
+                return null;
+            }
+            pendingCount.incrementAndGet();
+            added[0] = true;
+            return suspect;
+        });
+        if (full[0]) dropped.increment();
+        else if (!added[0]) coalesced.increment();
+        else {
+            try {
+                timer.schedule(() -> submit(row), coalesceMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                drop(row);
+            }
+        }
+    }
+
+    private void dispatchEach(BigBrother.RowIdentifier row, Object suspect) {
+        if (pendingCount.incrementAndGet() > maxPending) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        try {
+            workers.execute(() -> {
+                try {
+                    tell(row, suspect);
+                } finally {
+                    pendingCount.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            pendingCount.decrementAndGet();
+            dropped.increment();
+        }
+    }
+
+    private void submit(BigBrother.RowIdentifier row) {
+        try {
+            workers.execute(() -> deliver(row));
+        } catch (RejectedExecutionException e) {
+            drop(row);
+        }
+    }
+
+    private void drop(BigBrother.RowIdentifier row) {
+        if (pending.remove(row) != null) pendingCount.decrementAndGet();
+        dropped.increment();
+    }
+
+    private void deliver(BigBrother.RowIdentifier row) {
+        Object suspect = pending.remove(row);
+        if (suspect == null) return;
+        pendingCount.decrementAndGet();
+        tell(row, suspect);
+    }
+
+    private void tell(BigBrother.RowIdentifier row, Object suspect) {
+        try {
+            BigBrother.tellSpies(row, suspect);
+            dispatched.increment();
+        } catch (Exception e) {
+            failed.increment();
+            log.error("Failed to tell spies on " + row + " about " + suspect, e);
+        }
+    }
+
+    /**
+     * Stops taking new notifications, and waits up to timeoutMillis for those already pending to be delivered.
+     */
+    void shutdown(long timeoutMillis) {
+        try {
+            long deadline = System.currentTimeMillis() + timeoutMillis;
+            if (timer != null) {
+                timer.shutdown();
+                timer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+            }
+            workers.shutdown();
+            workers.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    int getPending() {
+        return pendingCount.get();
+    }
+
+    long getDispatched() {
+        return dispatched.sum();
+    }
+
+    long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    long getFailed() {
+        return failed.sum();
+    }
+}
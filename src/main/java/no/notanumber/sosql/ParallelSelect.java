@@ -0,0 +1,347 @@
+package no.notanumber.sosql;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent selects at the same time on separate connections, and hands back all results together,
+ * so a page needing several selects waits for the slowest of them instead of for all of them in a row.
+ * <pre>
+ * ParallelSelect selects = new ParallelSelect(async).consistent().timeout(Duration.ofSeconds(2));
+ * ParallelSelect.Query&lt;Person&gt; people = selects.select(Person.class, where(person_active, true));
+ * ParallelSelect.Query&lt;Order&gt; orders = selects.select(Order.class, asList(orderBy(order_date)), null);
+ * ParallelSelect.Results results = selects.run();
+ * results.get(people); results.get(orders);
+ * </pre>
+ * When consistent, one connection, the leader, exports its REPEATABLE READ snapshot with pg_export_snapshot,
+ * and the selects import it, so they all see the database as it was at one moment, like selects in one transaction would.
+ * Such selects run on the primary, as a snapshot can not be imported on another server. Otherwise they run read only,
+ * on replicas if there are any. Either way the selects neither use nor fill the shared caches, see DB.bypassSharedCaches.
+ * <p/>
+ * Each select runs in a transaction of the AsyncDB, counting against its limit. Consistent selects take the leader's
+ * permit and the permits of the selects all at once, so groups waiting for each other's permits can not hold up each other,
+ * and run on at most maxConcurrent - 1 connections besides the leader's, some after each other. The leader is let go
+ * as soon as every connection has imported the snapshot. With room for only one connection besides the leader,
+ * the leader runs the selects itself, after each other.
+ * <p/>
+ * The timeout and cancellation apply to the whole group: selects not yet started are skipped, selects running are stopped
+ * by postgres' statement_timeout when the time is up, and the first select failing fails the group.
+ * <p/>
+ * Inside a Transactional call the selects run one after the other in the caller's transaction, so they see its writes.
+ */
+public class ParallelSelect {
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "ParallelSelect-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long POLL_MILLIS = 100; //how often a group waiting for permits checks if it was cancelled
+
+    private final AsyncDB async;
+    private final List<Query<?>> queries = new ArrayList<>();
+    private boolean consistent;
+    private Duration timeout;
+
+    public ParallelSelect() {
+        this(new AsyncDB());
+    }
+
+    /**
+     * Runs the selects with async, so they share its limit on transactions running at once.
+     */
+    public ParallelSelect(AsyncDB async) {
+        this.async = async;
+    }
+
+    public <T> Query<T> select(Class<T> clazz, Where... whereClause) {
+        return select(clazz, Collections.emptyList(), null, whereClause);
+    }
+
+    public <T> Query<T> select(Class<T> clazz, List<OrderBy> orderBy, Limit limit, Where... whereClause) {
+        Query<T> query = new Query<>(clazz, orderBy, limit, whereClause);
+        queries.add(query);
+        return query;
+    }
+
+    /**
+     * Makes all selects see the same snapshot of the database.
+     */
+    public ParallelSelect consistent() {
+        this.consistent = true;
+        return this;
+    }
+
+    public ParallelSelect timeout(Duration timeout) {
+        this.timeout = timeout;
+        return this;
+    }
+
+    /**
+     * Runs the selects and waits for all of them.
+     */
+    public Results run() {
+        try {
+            return runAsync().get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Starts the selects. Cancelling the future cancels the selects not yet started.
+     */
+    public CompletableFuture<Results> runAsync() {
+        Optional<DB> caller = Transactional.currentDB();
+        if (caller.isPresent()) return runIn(caller.get());
+
+        Group group = new Group(timeout == null ? 0 : System.currentTimeMillis() + timeout.toMillis());
+        Map<Query<?>, CompletableFuture<List<?>>> running = new LinkedHashMap<>();
+        for (Query<?> query : queries) running.put(query, new CompletableFuture<>());
+        CompletableFuture<Results> result = new CompletableFuture<>();
+        running.values().forEach(select -> select.whenComplete((rows, e) -> {
+            if (e != null && result.completeExceptionally(e instanceof CompletionException ? e.getCause() : e)) group.cancel();
+        }));
+        CompletableFuture.allOf(running.values().toArray(new CompletableFuture<?>[0])).whenComplete((done, e) -> {
+            if (e == null) {
+                Results results = new Results();
+                running.forEach((query, select) -> results.rows.put(query, select.join()));
+                result.complete(results);
+            }
+        });
+        result.whenComplete((results, e) -> {
+            if (result.isCancelled()) group.cancel();
+        });
+        if (group.deadline > 0) {
+            ScheduledFuture<?> timesOut = timer.schedule(() -> {
+                if (result.completeExceptionally(new RuntimeException(new TimeoutException("Selects did not finish within " + timeout)))) group.cancel();
+            }, timeout.toMillis(), TimeUnit.MILLISECONDS);
+            result.whenComplete((results, e) -> timesOut.cancel(false));
+        }
+
+        if (consistent && !queries.isEmpty()) startConsistent(group, running);
+        else running.forEach((query, select) -> async.inReadOnlyTransaction(db -> group.run(db, query)).whenComplete((rows, e) -> {
+            if (e != null) select.completeExceptionally(e);
+            else select.complete(rows);
+        }));
+        return result;
+    }
+
+    private CompletableFuture<Results> runIn(DB db) {
+        CompletableFuture<Results> result = new CompletableFuture<>();
+        try {
+            Results results = new Results();
+            for (Query<?> query : queries) results.rows.put(query, db.select(query.clazz, query.orderBy, query.limit, query.where));
+            result.complete(results);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private void startConsistent(Group group, Map<Query<?>, CompletableFuture<List<?>>> running) {
+        Session session = Session.current();
+        int lanes = Math.min(queries.size(), async.getMaxConcurrent() - 1);
+        try {
+            async.getExecutor().execute(() -> {
+                if (lanes > 1) lead(group, session, running, lanes);
+                else runInLeader(group, session, running);
+            });
+        } catch (RejectedExecutionException e) {
+            running.values().forEach(select -> select.completeExceptionally(e));
+        }
+    }
+
+    /**
+     * Exports the snapshot, and lets the lanes import it, each running its share of the selects in a transaction of its own.
+     */
+    private void lead(Group group, Session session, Map<Query<?>, CompletableFuture<List<?>>> running, int lanes) {
+        if (!reserve(group, lanes + 1, running)) return;
+        DB leader = new DB();
+        leader.setSession(session);
+        String snapshot;
+        try {
+            snapshot = exportSnapshot(leader);
+        } catch (RuntimeException e) {
+            async.release(lanes + 1);
+            running.values().forEach(select -> select.completeExceptionally(e));
+            return;
+        }
+        AtomicInteger importing = new AtomicInteger(lanes);
+        Runnable imported = () -> {
+            //the exported snapshot must live until every lane has imported it, and not a moment longer
+            if (importing.decrementAndGet() == 0) {
+                try {
+                    leader.rollback();
+                } finally {
+                    async.release(1);
+                }
+            }
+        };
+        for (int lane = 0; lane < lanes; lane++) {
+            List<Query<?>> share = new ArrayList<>();
+            for (int i = lane; i < queries.size(); i += lanes) share.add(queries.get(i));
+            try {
+                async.getExecutor().execute(() -> runLane(group, session, snapshot, share, running, imported));
+            } catch (RejectedExecutionException e) {
+                share.forEach(query -> running.get(query).completeExceptionally(e));
+                async.release(1);
+                imported.run();
+            }
+        }
+    }
+
+    private void runLane(Group group, Session session, String snapshot, List<Query<?>> share,
+                         Map<Query<?>, CompletableFuture<List<?>>> running, Runnable imported) {
+        try {
+            AsyncDB.inOwnTransaction(new DB(), session, db -> {
+                db.bypassSharedCaches();
+                try {
+                    group.importSnapshot(db, snapshot);
+                } finally {
+                    imported.run();
+                }
+                for (Query<?> query : share) running.get(query).complete(group.run(db, query));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            share.forEach(query -> running.get(query).completeExceptionally(e));
+        } finally {
+            async.release(1);
+        }
+    }
+
+    /**
+     * Runs the selects one after another in the leader's REPEATABLE READ transaction, when there is no room for more connections.
+     */
+    private void runInLeader(Group group, Session session, Map<Query<?>, CompletableFuture<List<?>>> running) {
+        if (!reserve(group, 1, running)) return;
+        try {
+            AsyncDB.inOwnTransaction(new DB(), session, db -> {
+                db.bypassSharedCaches();
+                try {
+                    db.getConnection().setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+                for (Query<?> query : queries) running.get(query).complete(group.run(db, query));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            running.values().forEach(select -> select.completeExceptionally(e));
+        } finally {
+            async.release(1);
+        }
+    }
+
+    /**
+     * Takes the permits, or fails the selects if the group is cancelled or times out first.
+     */
+    private boolean reserve(Group group, int permits, Map<Query<?>, CompletableFuture<List<?>>> running) {
+        try {
+            while (!group.cancelled) {
+                long wait = group.deadline > 0 ? Math.min(POLL_MILLIS, group.deadline - System.currentTimeMillis()) : POLL_MILLIS;
+                if (wait <= 0) break;
+                if (async.tryReserve(permits, wait)) return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        RuntimeException failure = group.cancelled
+                ? new CancellationException("Selects cancelled waiting for a connection")
+                : new RuntimeException(new TimeoutException("Selects did not get a connection within " + timeout));
+        running.values().forEach(select -> select.completeExceptionally(failure));
+        return false;
+    }
+
+    private static String exportSnapshot(DB leader) {
+        try {
+            Connection connection = leader.getConnection();
+            connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+            try (Statement stmt = connection.createStatement(); ResultSet rs = stmt.executeQuery("SELECT pg_export_snapshot()")) {
+                rs.next();
+                return rs.getString(1);
+            }
+        } catch (SQLException | RuntimeException e) {
+            leader.rollback();
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+    }
+
+    private static class Group {
+        final long deadline;
+        volatile boolean cancelled;
+
+        Group(long deadline) {
+            this.deadline = deadline;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        void importSnapshot(DB db, String snapshot) {
+            try {
+                Connection connection = db.getConnection();
+                connection.setTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+                execute(connection, "SET TRANSACTION SNAPSHOT '" + snapshot + "'");
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        <T> List<T> run(DB db, Query<T> query) {
+            if (cancelled) throw new CancellationException("Select of " + query.clazz.getSimpleName() + " cancelled");
+            if (deadline > 0) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) throw new CancellationException("Select of " + query.clazz.getSimpleName() + " timed out");
+                try {
+                    execute(db.getConnection(), "SET LOCAL statement_timeout = " + left);
+                } catch (SQLException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return db.select(query.clazz, query.orderBy, query.limit, query.where);
+        }
+
+        private static void execute(Connection connection, String sql) throws SQLException {
+            try (Statement stmt = connection.createStatement()) {
+                stmt.execute(sql);
+            }
+        }
+    }
+
+    public static class Query<T> {
+        final Class<T> clazz;
+        final List<OrderBy> orderBy;
+        final Limit limit;
+        final Where[] where;
+
+        Query(Class<T> clazz, List<OrderBy> orderBy, Limit limit, Where[] where) {
+            this.clazz = clazz;
+            this.orderBy = orderBy;
+            this.limit = limit;
+            this.where = where;
+        }
+    }
+
+    public static class Results {
+        private final Map<Query<?>, List<?>> rows = new HashMap<>();
+
+        @SuppressWarnings("unchecked")
+        public <T> List<T> get(Query<T> query) {
+            if (!rows.containsKey(query)) throw new IllegalArgumentException("Query was not run with these results");
+            return (List<T>) rows.get(query);
+        }
+    }
+}
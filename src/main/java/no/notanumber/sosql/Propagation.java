@@ -0,0 +1,21 @@
+package no.notanumber.sosql;
+
+/**
+ * What a transactional method does when called while the thread already is in a transaction.
+ */
+public enum Propagation {
+    /**
+     * Join the thread's transaction, or start one if there is none.
+     * Throwing marks the joined transaction rollback only, caught or not.
+     */
+    REQUIRED,
+    /**
+     * Always start a transaction of its own, on a connection of its own, committed when the method returns.
+     */
+    REQUIRES_NEW,
+    /**
+     * Join the thread's transaction within a savepoint, rolled back to if the method throws,
+     * leaving the rest of the transaction to carry on. Starts a transaction if there is none.
+     */
+    NESTED
+}
@@ -0,0 +1,176 @@
+package no.notanumber.sosql;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Results of DB.select, shared by all DB instances, for classes that are selected the same way again and again.
+ * Caching is turned on per class with enable. Results are kept by SQL and parameter values, together with the tables
+ * the query read. When a transaction that wrote to one of those tables commits, the result is evicted.
+ * SQL run with DB.updateOrInsert may write to any table, so committing it evicts all results.
+ * Changes made by other processes are not seen until an entry is evicted,
+ * so only cache classes whose tables are written through this process' DB.
+ * <p/>
+ * Holds at most maxSize results of at most maxRows rows each, evicting the least recently used result when full.
+ * Callers get their own copies of the rows.
+ */
+public class QueryResultCache {
+
+    private static final Set<Class<?>> cachedClasses = new CopyOnWriteArraySet<>();
+    private static final LruCache<Key, Result> results = new LruCache<>(1000);
+    private static final ConcurrentMap<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+    private static final AtomicLong cleared = new AtomicLong();
+    private static final LongAdder invalidations = new LongAdder();
+    private static volatile int maxRows = 1000;
+
+    public static void enable(Class<?> clazz) {
+        cachedClasses.add(clazz);
+    }
+
+    public static void disable(Class<?> clazz) {
+        cachedClasses.remove(clazz);
+        results.removeIf(entry -> entry.getKey().clazz == clazz);
+    }
+
+    public static boolean isEnabled(Class<?> clazz) {
+        return cachedClasses.contains(clazz);
+    }
+
+    public static void setMaxSize(int maxSize) {
+        results.setMaxSize(maxSize);
+    }
+
+    public static int getMaxSize() {
+        return results.getMaxSize();
+    }
+
+    /**
+     * Results with more rows than this are not cached.
+     */
+    public static void setMaxRows(int rows) {
+        maxRows = rows;
+    }
+
+    public static int getMaxRows() {
+        return maxRows;
+    }
+
+    public static long getHits() {
+        return results.getHits();
+    }
+
+    public static long getMisses() {
+        return results.getMisses();
+    }
+
+    public static long getEvictions() {
+        return results.getEvictions();
+    }
+
+    /**
+     * Results evicted because a table they read was written to.
+     */
+    public static long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public static int size() {
+        return results.size();
+    }
+
+    public static synchronized void clear() {
+        cleared.incrementAndGet();
+        results.clear();
+    }
+
+    /**
+     * Evicts all results that read any of the tables.
+     */
+    public static synchronized void invalidate(Collection<String> tables) {
+        if (tables.isEmpty()) return;
+        tables.forEach(table -> tableVersions.computeIfAbsent(table, t -> new AtomicLong()).incrementAndGet());
+        results.removeIf(entry -> {
+            boolean stale = !Collections.disjoint(entry.getValue().tables, tables);
+            if (stale) invalidations.increment();
+            return stale;
+        });
+    }
+
+    static boolean isCached(Class<?> clazz) {
+        return !cachedClasses.isEmpty() && cachedClasses.contains(clazz);
+    }
+
+    /**
+     * Copies of the cached rows, or null.
+     */
+    static <T> List<T> get(Class<T> clazz, String sql, List<Object> parameters) {
+        Result result = results.get(new Key(clazz, sql, parameters));
+        if (result == null) return null;
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        List<T> copies = new ArrayList<>(result.rows.size());
+        result.rows.forEach(row -> copies.add(clazz.cast(mapped.shallowCopy(row))));
+        return copies;
+    }
+
+    /**
+     * Counts commits to the tables. Read before running the query, and pass to put, so results loaded before a commit,
+     * but put after it evicted results, are not kept.
+     */
+    static long version(Set<String> tables) {
+        long version = cleared.get();
+        for (String table : tables) {
+            AtomicLong written = tableVersions.get(table);
+            if (written != null) version += written.get();
+        }
+        return version;
+    }
+
+    static <T> void put(Class<T> clazz, String sql, List<Object> parameters, Set<String> tables, List<T> rows, long loadedAt) {
+        if (rows.size() > maxRows) return;
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        List<Object> copies = new ArrayList<>(rows.size());
+        rows.forEach(row -> copies.add(mapped.shallowCopy(row)));
+        Result result = new Result(new HashSet<>(tables), copies);
+        synchronized (QueryResultCache.class) {
+            if (version(tables) == loadedAt) results.put(new Key(clazz, sql, new ArrayList<>(parameters)), result);
+        }
+    }
+
+    private static class Result {
+        final Set<String> tables;
+        final List<Object> rows;
+
+        Result(Set<String> tables, List<Object> rows) {
+            this.tables = tables;
+            this.rows = rows;
+        }
+    }
+
+    private static class Key {
+        final Class<?> clazz;
+        final String sql;
+        final List<Object> parameters;
+
+        Key(Class<?> clazz, String sql, List<Object> parameters) {
+            this.clazz = clazz;
+            this.sql = sql;
+            this.parameters = parameters;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) return false;
+            Key other = (Key) obj;
+            return clazz == other.clazz && sql.equals(other.sql) && parameters.equals(other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clazz, sql, parameters);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package no.notanumber.sosql;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Everything the SQL text of a select depends on: what is selected, the columns and operators of the
+ * where clause (and whether each has a value to bind), the ordering, and whether it is limited or starts after a given row.
+ * Parameter values are not part of it.
+ */
+class QueryShape {
+
+    private final Object[] parts;
+    private final int hash;
+
+    private QueryShape(Object[] parts) {
+        this.parts = parts;
+        this.hash = Arrays.hashCode(parts);
+    }
+
+    static QueryShape of(Object selected, List<OrderBy> orderBy, boolean limited, boolean seek, Where... whereClause) {
+        int whereCount = whereClause == null ? 0 : whereClause.length;
+        Object[] parts = new Object[3 + 3 * whereCount + 2 * orderBy.size()];
+        int i = 0;
+        parts[i++] = selected;
+        parts[i++] = limited;
+        parts[i++] = seek;
+        for (int w = 0; w < whereCount; w++) {
+            parts[i++] = whereClause[w].column;
+            parts[i++] = whereClause[w].operator;
+            parts[i++] = whereClause[w].value != null;
+        }
+        for (OrderBy order : orderBy) {
+            parts[i++] = order.getColumn();
+            parts[i++] = order.getOrder();
+        }
+        return new QueryShape(parts);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof QueryShape && hash == ((QueryShape) obj).hash && Arrays.equals(parts, ((QueryShape) obj).parts);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,148 @@
+package no.notanumber.sosql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Timings and row counts for one SQL statement shape, that is the SQL text with ? for every parameter.
+ * Each shape is published as an MBean named no.notanumber.sosql:type=QueryStats,id=n.
+ * Recording is off until enabled with setEnabled(true), and costs nothing while off.
+ */
+public class QueryStats implements QueryStatsMXBean {
+
+    private static final Logger log = LoggerFactory.getLogger(QueryStats.class);
+    public static final int MAX_SHAPES = 1000;
+    private static final String OTHER = "(other statements)";
+    static final long NOT_TIMED = Long.MIN_VALUE; //what now() returns while off, never a real System.nanoTime()
+
+    private static volatile boolean enabled;
+    private static final ConcurrentMap<String, QueryStats> shapes = new ConcurrentHashMap<>();
+    private static final AtomicInteger ids = new AtomicInteger();
+
+    private final String sql;
+    final Histogram executeNanos = new Histogram();
+    final Histogram mappingNanos = new Histogram();
+    final Histogram rows = new Histogram();
+    final Histogram connectionWaitNanos = new Histogram();
+
+    private QueryStats(String sql) {
+        this.sql = sql;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("no.notanumber.sosql:type=QueryStats,id=" + ids.incrementAndGet()));
+        } catch (Exception e) {
+            log.warn("Could not publish statistics for " + sql + " as an MBean", e);
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        QueryStats.enabled = enabled;
+    }
+
+    public static Collection<QueryStats> getAll() {
+        return Collections.unmodifiableCollection(shapes.values());
+    }
+
+    /**
+     * The current time, or NOT_TIMED when statistics are off, so callers don't need to check.
+     */
+    static long now() {
+        return enabled ? System.nanoTime() : NOT_TIMED;
+    }
+
+    /**
+     * Records one execution of sql that started at started, got its results at executed, and was done reading them at finished.
+     */
+    static void record(String sql, long started, long executed, long finished, long rowCount, long connectionWait) {
+        if (!enabled || started == NOT_TIMED) return;
+        QueryStats stats = shapes.get(sql);
+        if (stats == null) {
+            String shape = shapes.size() < MAX_SHAPES ? sql : OTHER;
+            stats = shapes.computeIfAbsent(shape, QueryStats::new);
+        }
+        stats.executeNanos.record(executed - started);
+        stats.mappingNanos.record(finished - executed);
+        stats.rows.record(rowCount);
+        stats.connectionWaitNanos.record(connectionWait);
+    }
+
+    private static double millis(double nanos) {
+        return nanos / 1_000_000;
+    }
+
+    @Override
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public long getExecutions() {
+        return executeNanos.getCount();
+    }
+
+    @Override
+    public double getMeanExecuteMillis() {
+        return millis(executeNanos.getMean());
+    }
+
+    @Override
+    public double getPercentile99ExecuteMillis() {
+        return millis(executeNanos.getPercentile(99));
+    }
+
+    @Override
+    public double getMaxExecuteMillis() {
+        return millis(executeNanos.getMax());
+    }
+
+    @Override
+    public double getMeanMappingMillis() {
+        return millis(mappingNanos.getMean());
+    }
+
+    @Override
+    public double getMaxMappingMillis() {
+        return millis(mappingNanos.getMax());
+    }
+
+    @Override
+    public long getTotalRows() {
+        return rows.getSum();
+    }
+
+    @Override
+    public double getMeanRows() {
+        return rows.getMean();
+    }
+
+    @Override
+    public long getMaxRows() {
+        return rows.getMax();
+    }
+
+    @Override
+    public double getMeanConnectionWaitMillis() {
+        return millis(connectionWaitNanos.getMean());
+    }
+
+    @Override
+    public double getMaxConnectionWaitMillis() {
+        return millis(connectionWaitNanos.getMax());
+    }
+
+    @Override
+    public String toString() {
+        return sql + ": " + getExecutions() + " executions, mean " + getMeanExecuteMillis() + " ms, " + getTotalRows() + " rows";
+    }
+}
@@ -0,0 +1,28 @@
+package no.notanumber.sosql;
+
+public interface QueryStatsMXBean {
+
+    String getSql();
+
+    long getExecutions();
+
+    double getMeanExecuteMillis();
+
+    double getPercentile99ExecuteMillis();
+
+    double getMaxExecuteMillis();
+
+    double getMeanMappingMillis();
+
+    double getMaxMappingMillis();
+
+    long getTotalRows();
+
+    double getMeanRows();
+
+    long getMaxRows();
+
+    double getMeanConnectionWaitMillis();
+
+    double getMaxConnectionWaitMillis();
+}
@@ -0,0 +1,74 @@
+package no.notanumber.sosql;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+/**
+ * Reads one row at a time from an open result set, for streams that shouldn't hold all rows in memory.
+ * Closes the result set and its statement once the last row is read, or when the stream is closed,
+ * and then tells finished, if given, how many rows were read and how long reading and mapping them took.
+ */
+class ResultSetSpliterator<T> extends Spliterators.AbstractSpliterator<T> {
+
+    interface RowReader<T> {
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    interface Finished {
+        void finished(long rows, long readNanos);
+    }
+
+    private final PreparedStatement stmt;
+    private final ResultSet rs;
+    private final RowReader<T> reader;
+    private final Finished finished; //null when not timed
+    private long rows;
+    private long readNanos; //not counting the time the stream's consumer spends on each row
+    private boolean closed;
+
+    ResultSetSpliterator(PreparedStatement stmt, ResultSet rs, RowReader<T> reader, Finished finished) {
+        super(Long.MAX_VALUE, Spliterator.ORDERED); //a column streamed may hold nulls
+        this.stmt = stmt;
+        this.rs = rs;
+        this.reader = reader;
+        this.finished = finished;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super T> action) {
+        if (closed) return false;
+        try {
+            long started = finished == null ? 0 : System.nanoTime();
+            boolean more = rs.next();
+            T row = more ? reader.read(rs) : null;
+            if (finished != null) readNanos += System.nanoTime() - started;
+            if (!more) {
+                close();
+                return false;
+            }
+            rows++;
+            action.accept(row);
+            return true;
+        } catch (SQLException e) {
+            close();
+            throw new RuntimeException(e);
+        }
+    }
+
+    void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            rs.close();
+            stmt.close();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (finished != null) finished.finished(rows, readNanos);
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package no.notanumber.sosql;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Turns rows of a ResultSet into instances of a mapped class.
+ * A mapper is resolved once per class and result set shape (the column names in the order they are returned),
+ * with the column index and a typed setter for every field, so mapping a row does no lookups by name
+ * and primitive fields are set without boxing.
+ */
+class RowMapper<T> {
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final ConcurrentMap<Shape, RowMapper<?>> mappers = new ConcurrentHashMap<>();
+
+    private final MethodHandle constructor;
+    private final FieldReader[] readers;
+
+    @SuppressWarnings("unchecked")
+    static <T> RowMapper<T> forResultSet(Class<T> clazz, ResultSet rs) throws SQLException {
+        ResultSetMetaData metaData = rs.getMetaData();
+        String[] columnNames = new String[metaData.getColumnCount()];
+        for (int i = 0; i < columnNames.length; i++) {
+            columnNames[i] = metaData.getColumnName(i + 1);
+        }
+        return (RowMapper<T>) mappers.computeIfAbsent(new Shape(clazz, columnNames), shape -> new RowMapper<>(clazz, columnNames));
+    }
+
+    private RowMapper(Class<T> clazz, String[] columnNames) {
+        try {
+            Constructor<T> noArgs = clazz.getDeclaredConstructor();
+            noArgs.setAccessible(true);
+            this.constructor = lookup.unreflectConstructor(noArgs).asType(MethodType.methodType(Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new IllegalArgumentException(clazz.getName() + " needs a no-argument constructor to be loaded from the database", e);
+        }
+        List<String> names = Arrays.asList(columnNames);
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        List<FieldReader> readers = new ArrayList<>();
+        for (int i = 0; i < mapped.fields.size(); i++) {
+            Field f = mapped.fields.get(i);
+            if (!Modifier.isStatic(f.getModifiers()) && names.contains(f.getName())) {
+                DatabaseColumn column = mapped.columns.get(i);
+                readers.add(FieldReader.create(f, column, indexOf(columnNames, column.columnName)));
+            }
+        }
+        this.readers = readers.toArray(new FieldReader[readers.size()]);
+    }
+
+    private static int indexOf(String[] columnNames, String columnName) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equals(columnName)) return i + 1;
+        }
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnNames[i].equalsIgnoreCase(columnName)) return i + 1;
+        }
+        throw new IllegalArgumentException("Result set has no column named " + columnName);
+    }
+
+    @SuppressWarnings("unchecked")
+    T map(ResultSet rs) throws SQLException {
+        try {
+            Object instance = constructor.invokeExact();
+            for (FieldReader reader : readers) {
+                reader.read(rs, instance);
+            }
+            return (T) instance;
+        } catch (SQLException | RuntimeException e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static abstract class FieldReader {
+
+        final int index;
+        final MethodHandle setter;
+
+        FieldReader(Field field, int index, Class<?> valueType) {
+            this.index = index;
+            try {
+                this.setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, valueType));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        abstract void read(ResultSet rs, Object instance) throws Throwable;
+
+        static FieldReader create(Field field, DatabaseColumn column, int index) {
+            Class<?> type = field.getType();
+            if (type == Long.TYPE && DBFunctions.LONG_TYPES.contains(column.clazz)) return new LongReader(field, index);
+            if (type == Integer.TYPE && DBFunctions.INT_TYPES.contains(column.clazz)) return new IntReader(field, index);
+            if (type == Boolean.TYPE && DBFunctions.BOOL_TYPES.contains(column.clazz)) return new BooleanReader(field, index);
+            if (type.isPrimitive()) return new ReflectiveReader(field, column, index);
+            return new ObjectReader(field, column, index);
+        }
+    }
+
+    //NULL leaves a primitive field at its default value
+    private static class LongReader extends FieldReader {
+        LongReader(Field field, int index) { super(field, index, long.class); }
+
+        @Override
+        void read(ResultSet rs, Object instance) throws Throwable {
+            long value = rs.getLong(index);
+            if (!rs.wasNull()) setter.invokeExact(instance, value);
+        }
+    }
+
+    private static class IntReader extends FieldReader {
+        IntReader(Field field, int index) { super(field, index, int.class); }
+
+        @Override
+        void read(ResultSet rs, Object instance) throws Throwable {
+            int value = rs.getInt(index);
+            if (!rs.wasNull()) setter.invokeExact(instance, value);
+        }
+    }
+
+    private static class BooleanReader extends FieldReader {
+        BooleanReader(Field field, int index) { super(field, index, boolean.class); }
+
+        @Override
+        void read(ResultSet rs, Object instance) throws Throwable {
+            boolean value = "T".equals(rs.getString(index));
+            if (!rs.wasNull()) setter.invokeExact(instance, value);
+        }
+    }
+
+    private static class ObjectReader extends FieldReader {
+        private final DatabaseColumn column;
+
+        ObjectReader(Field field, DatabaseColumn column, int index) {
+            super(field, index, Object.class);
+            this.column = column;
+        }
+
+        @Override
+        void read(ResultSet rs, Object instance) throws Throwable {
+            setter.invokeExact(instance, DB.getValueFromRS(rs, index, column));
+        }
+    }
+
+    //Primitive fields mapped to a column of another type, relies on the widening done by Field.set
+    private static class ReflectiveReader extends FieldReader {
+        private final Field field;
+        private final DatabaseColumn column;
+
+        ReflectiveReader(Field field, DatabaseColumn column, int index) {
+            super(field, index, field.getType());
+            this.field = field;
+            this.column = column;
+        }
+
+        @Override
+        void read(ResultSet rs, Object instance) throws Throwable {
+            Object value = DB.getValueFromRS(rs, index, column);
+            if (value != null) field.set(instance, value);
+        }
+    }
+
+    private static class Shape {
+        private final Class<?> clazz;
+        private final String[] columnNames;
+        private final int hash;
+
+        Shape(Class<?> clazz, String[] columnNames) {
+            this.clazz = clazz;
+            this.columnNames = columnNames;
+            this.hash = 31 * clazz.hashCode() + Arrays.hashCode(columnNames);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Shape
+                    && clazz == ((Shape) obj).clazz
+                    && Arrays.equals(columnNames, ((Shape) obj).columnNames);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
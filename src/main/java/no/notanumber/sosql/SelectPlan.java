@@ -0,0 +1,94 @@
+package no.notanumber.sosql;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Generated SQL for a query shape, plus where to find the values of its parameters, in order:
+ * the where clauses that have values, the values of the last row seen when paging, and the limit.
+ */
+class SelectPlan {
+
+    static final LruCache<QueryShape, SelectPlan> cache = new LruCache<>(1000);
+
+    final String sql;
+    final Set<String> tables;
+    private final int[] boundWheres;
+    private final Field[] seekFields;
+    private final boolean limited;
+
+    SelectPlan(String sql, Set<String> tables, Where... whereClause) {
+        this(sql, tables, new Field[0], false, whereClause);
+    }
+
+    SelectPlan(String sql, Set<String> tables, Field[] seekFields, boolean limited, Where... whereClause) {
+        this.sql = sql;
+        this.tables = Collections.unmodifiableSet(tables);
+        this.seekFields = seekFields;
+        this.limited = limited;
+        List<Integer> bound = new ArrayList<>();
+        for (int i = 0; whereClause != null && i < whereClause.length; i++) {
+            if (whereClause[i].value != null) bound.add(i);
+        }
+        this.boundWheres = bound.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static SelectPlan forClass(Class<?> clazz, List<OrderBy> orderBy, Where... whereClause) {
+        return forClass(clazz, orderBy, false, false, whereClause);
+    }
+
+    static SelectPlan forClass(Class<?> clazz, List<OrderBy> orderBy, boolean limited, boolean seek, Where... whereClause) {
+        return cache.get(QueryShape.of(clazz, orderBy, limited, seek, whereClause), shape -> DBFunctions.makeSelectPlan(clazz, orderBy, limited, seek, whereClause));
+    }
+
+    static SelectPlan forColumn(DatabaseColumn column, List<OrderBy> orderBy, Where... whereClause) {
+        return forColumn(column, orderBy, false, whereClause);
+    }
+
+    static SelectPlan forColumn(DatabaseColumn column, List<OrderBy> orderBy, boolean limited, Where... whereClause) {
+        return cache.get(QueryShape.of(column, orderBy, limited, false, whereClause), shape -> DBFunctions.makeSelectPlan(column, orderBy, limited, whereClause));
+    }
+
+    /**
+     * The fields holding the values of the order by columns, in the order they are used in the seek condition
+     * made by DBFunctions.makeSeek.
+     */
+    static Field[] seekFields(Class<?> clazz, List<OrderBy> orderBy) {
+        MappedClass mapped = ColumnHelper.getMappedClass(clazz);
+        List<Field> orderFields = new ArrayList<>();
+        for (OrderBy order : orderBy) {
+            int index = mapped.columns.indexOf(order.getColumn());
+            if (index < 0)
+                throw new IllegalArgumentException("Can not page " + clazz.getSimpleName() + " by " + order.getColumn().columnName + " as it is not mapped by the class");
+            orderFields.add(mapped.fields.get(index));
+        }
+        if (DBFunctions.sameDirection(orderBy)) return orderFields.toArray(new Field[orderFields.size()]);
+        List<Field> seekFields = new ArrayList<>();
+        for (int i = 0; i < orderFields.size(); i++) {
+            seekFields.addAll(orderFields.subList(0, i + 1));
+        }
+        return seekFields.toArray(new Field[seekFields.size()]);
+    }
+
+    List<Object> parameters(Where... whereClause) {
+        return parameters(whereClause, null, null);
+    }
+
+    List<Object> parameters(Where[] whereClause, Object after, Limit limit) {
+        List<Object> params = new ArrayList<>(boundWheres.length + seekFields.length + 2);
+        for (int i : boundWheres) {
+            params.add(whereClause[i].value);
+        }
+        for (Field f : seekFields) {
+            params.add(DBFunctions.get(f, after));
+        }
+        if (limited) {
+            params.add(limit.rows);
+            params.add(limit.offset);
+        }
+        return params;
+    }
+}
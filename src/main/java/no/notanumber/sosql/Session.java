@@ -0,0 +1,40 @@
+package no.notanumber.sosql;
+
+/**
+ * Whoever should read their own writes, like a user's requests: once a DB of the session commits a write,
+ * read only DBs of the session read from the primary for DBFunctions.setReadYourWritesMillis, until the replicas have caught up.
+ * <p/>
+ * A DB belongs to the session current on the thread creating it, unless given another with DB.setSession.
+ * Each thread has a session of its own until given one with setCurrent, so by default a thread reads its own writes.
+ * Keep a session with whatever it belongs to, and set it as current when handling a request for it.
+ */
+public class Session {
+
+    private static final ThreadLocal<Session> current = ThreadLocal.withInitial(Session::new);
+
+    private volatile long lastCommittedWrite;
+
+    public static Session current() {
+        return current.get();
+    }
+
+    /**
+     * Makes DBs created on this thread belong to the session. Null gives the thread a session of its own again.
+     */
+    public static void setCurrent(Session session) {
+        if (session == null) current.remove();
+        else current.set(session);
+    }
+
+    void committedWrite() {
+        lastCommittedWrite = System.currentTimeMillis();
+    }
+
+    /**
+     * Whether a DB of the session committed a write less than millis ago.
+     */
+    public boolean wroteWithin(long millis) {
+        long wrote = lastCommittedWrite;
+        return wrote > 0 && System.currentTimeMillis() - wrote < millis;
+    }
+}
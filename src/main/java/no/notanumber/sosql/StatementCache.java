@@ -0,0 +1,113 @@
+package no.notanumber.sosql;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Prepared statements of one connection, kept open for reuse until the connection is released.
+ * Holds at most maxSize statements, closing the least recently used one when full.
+ * Reusing a statement lets the postgres driver switch to a server side prepared statement after
+ * it has been run a few times, so the SQL isn't parsed and planned again.
+ * Not thread safe, like the connection itself.
+ */
+class StatementCache {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementCache.class);
+    private static final LongAdder totalHits = new LongAdder();
+    private static final LongAdder totalMisses = new LongAdder();
+
+    private final Connection connection;
+    private final LinkedHashMap<Key, PreparedStatement> statements;
+    private long hits;
+    private long misses;
+
+    StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.statements = new LinkedHashMap<Key, PreparedStatement>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, PreparedStatement> eldest) {
+                if (size() <= maxSize) return false;
+                close(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    PreparedStatement prepare(String sql) throws SQLException {
+        return prepare(sql, false);
+    }
+
+    PreparedStatement prepare(String sql, boolean returnGeneratedKeys) throws SQLException {
+        Key key = new Key(sql, returnGeneratedKeys);
+        PreparedStatement stmt = statements.get(key);
+        if (stmt != null && !stmt.isClosed()) {
+            hits++;
+            totalHits.increment();
+            stmt.clearParameters();
+            return stmt;
+        }
+        misses++;
+        totalMisses.increment();
+        stmt = returnGeneratedKeys ? connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS) : connection.prepareStatement(sql);
+        statements.put(key, stmt);
+        return stmt;
+    }
+
+    void closeAll() {
+        statements.values().forEach(StatementCache::close);
+        statements.clear();
+    }
+
+    private static void close(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            log.warn("Could not close statement", e);
+        }
+    }
+
+    long getHits() {
+        return hits;
+    }
+
+    long getMisses() {
+        return misses;
+    }
+
+    static long getTotalHits() {
+        return totalHits.sum();
+    }
+
+    static long getTotalMisses() {
+        return totalMisses.sum();
+    }
+
+    private static class Key {
+        private final String sql;
+        private final boolean returnGeneratedKeys;
+
+        Key(String sql, boolean returnGeneratedKeys) {
+            this.sql = sql;
+            this.returnGeneratedKeys = returnGeneratedKeys;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && sql.equals(((Key) obj).sql) && returnGeneratedKeys == ((Key) obj).returnGeneratedKeys;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sql, returnGeneratedKeys);
+        }
+    }
+}
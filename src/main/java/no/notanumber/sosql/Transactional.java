@@ -2,39 +2,144 @@ package no.notanumber.sosql;
 
 import javassist.util.proxy.MethodHandler;
 import javassist.util.proxy.ProxyFactory;
+import javassist.util.proxy.ProxyObject;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.sql.Savepoint;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 
+/**
+ * Wraps an object so each call to it runs in a transaction, committed when the call returns and rolled back if it throws.
+ * Calls made while the thread is in a transaction join it, unless told otherwise by the Propagation given,
+ * so a request passing through several transactional objects uses one connection.
+ * A joining call that throws marks the transaction rollback only, so it is rolled back even if the caller catches
+ * the exception, and committing it throws.
+ */
 public class Transactional {
 
-    @SuppressWarnings("unchecked")
+    private static final ConcurrentMap<Class<?>, Class<?>> proxyClasses = new ConcurrentHashMap<>();
+    private static final ThreadLocal<DB> current = new ThreadLocal<>();
+
     public static <T extends WithDatabase> T transactional(final T dbActions) {
+        return transactional(dbActions, Propagation.REQUIRED);
+    }
+
+    public static <T extends WithDatabase> T transactional(final T dbActions, Propagation propagation) {
+        return proxy(dbActions, propagation, false);
+    }
+
+    /**
+     * Like transactional, but transactions started are read only, and read from a replica if there are any.
+     * Calls joining a transaction already started use its DB, read only or not.
+     */
+    public static <T extends WithDatabase> T readOnly(final T dbActions) {
+        return proxy(dbActions, Propagation.REQUIRED, true);
+    }
 
-        ProxyFactory pf = new ProxyFactory();
-        pf.setSuperclass(dbActions.getClass());
+    @SuppressWarnings("unchecked")
+    private static <T extends WithDatabase> T proxy(final T dbActions, Propagation propagation, boolean readOnly) {
+        Class<?> proxyClass = proxyClasses.computeIfAbsent(dbActions.getClass(), clazz -> {
+            ProxyFactory pf = new ProxyFactory();
+            pf.setSuperclass(clazz);
+            return pf.createClass();
+        });
         try {
-            return (T) pf.create(null, null, new MethodHandler() {
+            T proxy = (T) proxyClass.getDeclaredConstructor().newInstance();
+            ((ProxyObject) proxy).setHandler(new MethodHandler() {
 
                 @Override
                 public Object invoke(Object self, Method thisMethod, Method proceed, Object[] args) throws Throwable {
-                    DB db = new DB();
-                    dbActions.setDB(db);
-                    try {
-                        Object returnVal = thisMethod.invoke(dbActions, args);
-                        db.commitAndReleaseConnection();
-                        return returnVal;
-                    } catch (InvocationTargetException e) {
-                        db.rollback();
-                        throw e.getTargetException();
-                    } catch (Exception e) {
-                        db.rollback();
-                        throw e;
-                    }
+                    DB outer = current.get();
+                    if (outer == null || propagation == Propagation.REQUIRES_NEW) return inNewTransaction(readOnly ? DB.readOnly() : new DB(), dbActions, thisMethod, args);
+                    if (propagation == Propagation.NESTED) return inSavepoint(outer, dbActions, thisMethod, args);
+                    return joining(outer, dbActions, thisMethod, args);
                 }
             });
-        } catch (NoSuchMethodException | IllegalArgumentException | InstantiationException | IllegalAccessException | InvocationTargetException e) {
+            return proxy;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getTargetException();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        } catch (InstantiationException | IllegalAccessException | NoSuchMethodException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * The DB of the transaction the thread is in.
+     */
+    public static Optional<DB> currentDB() {
+        return Optional.ofNullable(current.get());
+    }
+
+    /**
+     * Runs work with db as the thread's transaction, so transactional objects it calls join db.
+     */
+    static <R> R within(DB db, Function<DB, R> work) {
+        DB outer = current.get();
+        current.set(db);
+        try {
+            return work.apply(db);
+        } finally {
+            if (outer != null) current.set(outer);
+            else current.remove();
+        }
+    }
+
+    private static Object inNewTransaction(DB db, WithDatabase dbActions, Method method, Object[] args) throws Throwable {
+        DB outer = current.get();
+        current.set(db);
+        try {
+            Object returnVal = inTransaction(db, dbActions, method, args);
+            db.commitAndReleaseConnection();
+            return returnVal;
+        } catch (Throwable e) {
+            db.rollback();
+            throw e;
+        } finally {
+            if (outer != null) current.set(outer);
+            else current.remove();
+        }
+    }
+
+    private static Object inSavepoint(DB db, WithDatabase dbActions, Method method, Object[] args) throws Throwable {
+        Savepoint savepoint = db.setSavepoint();
+        try {
+            Object returnVal = inTransaction(db, dbActions, method, args);
+            db.releaseSavepoint(savepoint);
+            return returnVal;
+        } catch (Throwable e) {
+            db.rollbackTo(savepoint);
+            throw e;
+        }
+    }
+
+    /**
+     * A joining call that throws may have written part of what it meant to, so the transaction it joined must not commit.
+     */
+    private static Object joining(DB db, WithDatabase dbActions, Method method, Object[] args) throws Throwable {
+        try {
+            return inTransaction(db, dbActions, method, args);
+        } catch (Throwable e) {
+            db.setRollbackOnly();
+            throw e;
+        }
+    }
+
+    private static Object inTransaction(DB db, WithDatabase dbActions, Method method, Object[] args) throws Throwable {
+        DB previous = dbActions.getDB();
+        dbActions.setDB(db);
+        try {
+            return method.invoke(dbActions, args);
+        } catch (InvocationTargetException e) {
+            throw e.getTargetException();
+        } finally {
+            dbActions.setDB(previous);
+        }
+    }
 }
@@ -0,0 +1,174 @@
+package no.notanumber.sosql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.util.List;
+import java.util.concurrent.*;
+
+public class AsyncDBTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Child() {
+        }
+
+        Child(long id) {
+            this.child_id = id;
+            this.child_center = 1L;
+        }
+    }
+
+    public static class Children extends WithDatabase {
+
+        public List<Child> all() {
+            return getDB().select(Child.class);
+        }
+    }
+
+    FakeJdbc primary = new FakeJdbc();
+    FakeJdbc replica = new FakeJdbc();
+    DataSource previous;
+    ExecutorService executor = Executors.newCachedThreadPool();
+    AsyncDB async = new AsyncDB(executor, 2);
+
+    @Before
+    public void useFakes() {
+        previous = DBFunctions.getDataSource();
+        DBFunctions.setDataSource(primary.dataSource());
+        DBFunctions.addReplica(replica.dataSource());
+        String[] columns = {"child_id", "child_center"};
+        primary.answer("FROM child", columns, new Object[]{1L, 1L});
+        replica.answer("FROM child", columns, new Object[]{1L, 1L}, new Object[]{2L, 1L});
+    }
+
+    @After
+    public void restore() {
+        executor.shutdownNow();
+        DBFunctions.setDataSource(previous);
+        DBFunctions.removeReplicas();
+        DBFunctions.setReadYourWritesMillis(0);
+        Session.setCurrent(null);
+    }
+
+    @Test
+    public void selects_run_in_read_only_transactions_of_their_own() {
+        List<Child> children = async.selectAsync(Child.class).join();
+
+        Assert.assertEquals(2, children.size());
+        Assert.assertTrue(primary.connections.isEmpty());
+        FakeJdbc.FakeConnection connection = replica.connections.get(0);
+        Assert.assertTrue(connection.readOnly);
+        Assert.assertEquals(1, connection.commits);
+        Assert.assertTrue(connection.closed);
+    }
+
+    @Test
+    public void writes_are_committed_when_done() {
+        async.updateAsync(new Child(1)).join();
+
+        FakeJdbc.FakeConnection connection = primary.connections.get(0);
+        Assert.assertEquals(1, primary.executed("UPDATE child").size());
+        Assert.assertEquals(1, connection.commits);
+        Assert.assertTrue(connection.closed);
+    }
+
+    @Test
+    public void work_that_throws_is_rolled_back_and_fails_the_future() {
+        CompletableFuture<Object> failing = async.inTransaction(db -> {
+            db.update(new Child(1));
+            throw new IllegalArgumentException("failed");
+        });
+
+        try {
+            failing.join();
+            Assert.fail("Work that threw succeeded");
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        FakeJdbc.FakeConnection connection = primary.connections.get(0);
+        Assert.assertEquals(0, connection.commits);
+        Assert.assertEquals(1, connection.rollbacks);
+    }
+
+    @Test
+    public void transactional_objects_called_by_the_work_join_its_transaction() {
+        List<Child> children = async.transactional(new Children(), Children::all).join();
+
+        Assert.assertEquals(1, children.size());
+        Assert.assertEquals(1, primary.connections.size());
+        Assert.assertEquals(1, primary.connections.get(0).commits);
+        Assert.assertFalse(Transactional.currentDB().isPresent());
+    }
+
+    @Test
+    public void can_not_be_started_inside_a_transaction() {
+        DB caller = new DB(primary.connection());
+        try {
+            Transactional.within(caller, db -> async.selectAsync(Child.class));
+            Assert.fail("Started async work sharing the caller's connection");
+        } catch (IllegalStateException e) {
+            //refused
+        }
+        Assert.assertTrue(replica.connections.isEmpty());
+    }
+
+    @Test
+    public void the_caller_reads_what_its_async_writes_committed() {
+        DBFunctions.setReadYourWritesMillis(60000);
+        async.updateAsync(new Child(1)).join();
+
+        async.selectAsync(Child.class).join();
+        DB.readOnly().select(Child.class);
+
+        Assert.assertTrue(replica.connections.isEmpty());
+        Assert.assertEquals(3, primary.connections.size());
+    }
+
+    @Test
+    public void others_still_read_from_replicas_after_async_writes() throws Exception {
+        DBFunctions.setReadYourWritesMillis(60000);
+        async.updateAsync(new Child(1)).join();
+
+        Thread other = new Thread(() -> async.selectAsync(Child.class).join());
+        other.start();
+        other.join(2000);
+
+        Assert.assertEquals(1, replica.connections.size());
+    }
+
+    @Test
+    public void runs_at_most_max_concurrent_transactions_at_once() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(2);
+        CompletableFuture<?>[] work = new CompletableFuture<?>[4];
+        for (int i = 0; i < work.length; i++) {
+            work[i] = async.inReadOnlyTransaction(db -> {
+                started.countDown();
+                try {
+                    return release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        Assert.assertTrue(started.await(2, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + 2000;
+        while (async.getWaiting() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        Assert.assertEquals(2, async.getRunning());
+        Assert.assertEquals(2, async.getWaiting());
+        release.countDown();
+        CompletableFuture.allOf(work).get(2, TimeUnit.SECONDS);
+        Assert.assertEquals(0, async.getRunning());
+    }
+}
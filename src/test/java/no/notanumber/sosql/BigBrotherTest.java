@@ -5,6 +5,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
 
 public class BigBrotherTest {
 
@@ -14,6 +18,26 @@ public class BigBrotherTest {
         public long pkey;
     }
 
+    public static class Center {
+
+        @Column(columnName = "center_id")
+        public Long center_id;
+    }
+
+    public static class Kid {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Kid(long id, long center) {
+            this.child_id = id;
+            this.child_center = center;
+        }
+    }
+
     Child you = new Child();
 
     BigBrother bigBrother = new BigBrother();
@@ -36,6 +60,31 @@ public class BigBrotherTest {
         Assert.assertFalse(bigBrother.getSpies(new BigBrother.RowIdentifier(DatabaseColumns.col, 1l)).isPresent());
     }
 
+    @Test
+    public void tells_a_spy_spying_twice_on_a_row_once() {
+        int[] told = new int[1];
+        BigBrother.Spy spy = suspect -> told[0]++;
+        you.pkey = 2l;
+        bigBrother.spyOn(you, spy);
+        bigBrother.spyOn(you, spy);
+        BigBrother.inform(new BigBrother.RowIdentifier(DatabaseColumns.col, 2l), you);
+        Assert.assertEquals(1, told[0]);
+        Assert.assertEquals(1, bigBrother.getSpies(new BigBrother.RowIdentifier(DatabaseColumns.col, 2l)).get().size());
+    }
+
+    @Test
+    public void tells_a_spy_on_a_shared_row_about_every_suspect() {
+        Center center = new Center();
+        center.center_id = 3l;
+        List<Object> told = new ArrayList<>();
+        BigBrother.Spy spy = told::add;
+        bigBrother.spyOn(center, spy);
+        Kid first = new Kid(1, 3), second = new Kid(2, 3);
+        BigBrother.informAllAgents(first, second);
+        Assert.assertEquals(asList(first, second), told);
+        Assert.assertNotNull(spy);
+    }
+
     private WeakReference<BigBrother.Spy> addSpy() {
         BigBrother.Spy spy = new BigBrother.Spy() {
             @Override
@@ -0,0 +1,97 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
+
+public class BulkLoaderTest {
+
+    public static class Note {
+
+        @Column(columnName = "note_id")
+        public Long note_id;
+
+        @Column(columnName = "note_text")
+        public String note_text;
+
+        @Column(columnName = "note_count")
+        public Integer note_count;
+
+        @Column(columnName = "note_done")
+        public Boolean note_done;
+
+        @Column(columnName = "note_data")
+        public byte[] note_data;
+
+        Note() {
+        }
+
+        Note(String text, Integer count, Boolean done, byte[] data) {
+            this.note_text = text;
+            this.note_count = count;
+            this.note_done = done;
+            this.note_data = data;
+        }
+    }
+
+    @Test
+    public void copies_all_columns_but_the_primary_key() {
+        Assert.assertEquals("COPY note(note_text, note_count, note_done, note_data) FROM STDIN", loader(CopyFormat.TEXT).getSQL());
+        Assert.assertEquals("COPY note(note_text, note_count, note_done, note_data) FROM STDIN (FORMAT BINARY)", loader(CopyFormat.BINARY).getSQL());
+    }
+
+    @Test
+    public void text_escapes_separators_and_writes_null_and_bytes() throws IOException {
+        BulkLoader loader = loader(CopyFormat.TEXT);
+        loader.writeHeader();
+        loader.write(new Note("a\tb\\c\nd\re", 7, true, new byte[]{1, (byte) 0xab}));
+        loader.write(new Note(null, null, null, null));
+        loader.writeTrailer();
+        Assert.assertEquals("a\\tb\\\\c\\nd\\re\t7\tT\t\\\\x01ab\n\\N\t\\N\t\\N\t\\N\n", new String(loader.buffered(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void binary_writes_signature_sized_fields_and_trailer() throws IOException {
+        BulkLoader loader = loader(CopyFormat.BINARY);
+        loader.sqlTypes = new int[]{Types.VARCHAR, Types.INTEGER, Types.BOOLEAN, Types.BINARY};
+        loader.writeHeader();
+        loader.write(new Note("\u00f8", 7, true, new byte[]{1, 2, 3}));
+        loader.write(new Note(null, null, null, null));
+        loader.writeTrailer();
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream expected = new DataOutputStream(bytes);
+        expected.write(new byte[]{'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0});
+        expected.writeInt(0);
+        expected.writeInt(0);
+        expected.writeShort(4);
+        expected.writeInt(2);
+        expected.write("\u00f8".getBytes(StandardCharsets.UTF_8));
+        expected.writeInt(4);
+        expected.writeInt(7);
+        expected.writeInt(1);
+        expected.writeByte(1);
+        expected.writeInt(3);
+        expected.write(new byte[]{1, 2, 3});
+        expected.writeShort(4);
+        for (int i = 0; i < 4; i++) expected.writeInt(-1);
+        expected.writeShort(-1);
+        Assert.assertArrayEquals(bytes.toByteArray(), loader.buffered());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void binary_refuses_columns_of_unknown_width() throws IOException {
+        BulkLoader loader = loader(CopyFormat.BINARY);
+        loader.sqlTypes = new int[]{Types.NUMERIC, Types.INTEGER, Types.BOOLEAN, Types.BINARY};
+        loader.write(new Note("1.5", 1, false, new byte[0]));
+    }
+
+    private static BulkLoader loader(CopyFormat format) {
+        return new BulkLoader(null, Note.class, "note", format);
+    }
+}
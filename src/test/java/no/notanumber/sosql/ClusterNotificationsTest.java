@@ -0,0 +1,108 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+
+public class ClusterNotificationsTest {
+
+    public static class Center {
+
+        @Column(columnName = "center_id")
+        public Long center_id;
+
+        Center(long id) {
+            this.center_id = id;
+        }
+    }
+
+    @Test
+    public void rows_are_read_back_as_the_columns_mapped_type() {
+        List<BigBrother.RowIdentifier> rows = asList(
+                new BigBrother.RowIdentifier(DatabaseColumns.note_id, 7L),
+                new BigBrother.RowIdentifier(DatabaseColumns.note_count, 3),
+                new BigBrother.RowIdentifier(DatabaseColumns.note_text, "two words & more"),
+                new BigBrother.RowIdentifier(DatabaseColumns.note_done, true),
+                new BigBrother.RowIdentifier(DatabaseColumns.note_day, LocalDate.of(2024, 2, 29)),
+                new BigBrother.RowIdentifier(DatabaseColumns.note_written, LocalDateTime.of(2024, 2, 29, 13, 45, 10)),
+                new BigBrother.RowIdentifier(DatabaseColumns.note_kind, DatabaseColumns.Kind.TODO));
+
+        List<String> payloads = ClusterNotifications.encode("here", emptyList(), false, rows);
+        Assert.assertEquals(1, payloads.size());
+        ClusterNotifications.Changes changes = ClusterNotifications.decode("there", payloads.get(0));
+
+        Assert.assertEquals(rows, changes.rows);
+        Assert.assertEquals(asList("note"), new ArrayList<>(changes.tables));
+    }
+
+    @Test
+    public void tables_and_anything_are_sent_and_own_payloads_ignored() {
+        List<String> payloads = ClusterNotifications.encode("here", asList("child"), true, emptyList());
+
+        ClusterNotifications.Changes changes = ClusterNotifications.decode("there", payloads.get(0));
+        Assert.assertTrue(changes.anything);
+        Assert.assertEquals(asList("child"), new ArrayList<>(changes.tables));
+
+        ClusterNotifications.Changes own = ClusterNotifications.decode("here", payloads.get(0));
+        Assert.assertFalse(own.anything);
+        Assert.assertTrue(own.tables.isEmpty());
+    }
+
+    @Test
+    public void splits_rows_over_payloads_that_fit() {
+        List<BigBrother.RowIdentifier> rows = new ArrayList<>();
+        for (long id = 0; id < 2000; id++) rows.add(new BigBrother.RowIdentifier(DatabaseColumns.child_id, id));
+
+        List<String> payloads = ClusterNotifications.encode("here", emptyList(), false, rows);
+        Assert.assertTrue(payloads.size() > 1);
+        List<BigBrother.RowIdentifier> received = new ArrayList<>();
+        for (String payload : payloads) {
+            Assert.assertTrue(payload.length() <= ClusterNotifications.MAX_PAYLOAD);
+            received.addAll(ClusterNotifications.decode("there", payload).rows);
+        }
+        Assert.assertEquals(rows, received);
+    }
+
+    @Test
+    public void keeps_the_rest_of_a_payload_with_an_unreadable_row() {
+        ClusterNotifications.Changes changes = ClusterNotifications.decode("there", "here note_kind=GONE child_id=4");
+
+        Assert.assertEquals(asList(new BigBrother.RowIdentifier(DatabaseColumns.child_id, 4L)), changes.rows);
+        Assert.assertTrue(changes.tables.containsAll(asList("note", "child")));
+    }
+
+    @Test
+    public void spies_are_told_about_rows_altered_elsewhere_apart_from_their_suspects() {
+        List<Object> suspects = new ArrayList<>();
+        List<BigBrother.RowIdentifier> elsewhere = new ArrayList<>();
+        BigBrother.Spy spy = new BigBrother.Spy() {
+            @Override
+            public void suspectAltered(Object suspect) {
+                suspects.add(suspect);
+            }
+
+            @Override
+            public void rowAlteredElsewhere(BigBrother.RowIdentifier row) {
+                elsewhere.add(row);
+            }
+        };
+        List<Object> oldStyle = new ArrayList<>();
+        BigBrother.Spy lambda = oldStyle::add;
+        BigBrother.spyOn(new Center(41), spy);
+        BigBrother.spyOn(new Center(41), lambda);
+        BigBrother.RowIdentifier row = new BigBrother.RowIdentifier(DatabaseColumns.center_id, 41L);
+
+        BigBrother.informAlteredElsewhere(row);
+
+        Assert.assertEquals(asList(row), elsewhere);
+        Assert.assertTrue(suspects.isEmpty());
+        Assert.assertTrue(oldStyle.isEmpty());
+    }
+}
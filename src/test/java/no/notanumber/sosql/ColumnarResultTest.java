@@ -0,0 +1,121 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static java.util.Arrays.asList;
+
+public class ColumnarResultTest {
+
+    public static class Note {
+
+        @Column(columnName = "note_id")
+        public Long note_id;
+
+        @Column(columnName = "note_count")
+        public Integer note_count;
+
+        @Column(columnName = "note_done")
+        public Boolean note_done;
+
+        @Column(columnName = "note_text")
+        public String note_text;
+    }
+
+    public static class Counted {
+
+        @Column(columnName = "note_count")
+        public Integer note_count;
+
+        @Column(columnName = "note_count")
+        public Integer count;
+    }
+
+    static final String[] columns = {"note_id", "note_count", "note_done", "note_text"};
+
+    @Test
+    public void holds_each_column_in_an_array_of_its_type() throws SQLException {
+        ColumnarResult<Note> notes = build(FakeJdbc.resultSet(columns,
+                new Object[]{1L, 5, "T", "first"},
+                new Object[]{2L, 7, "F", "second"}));
+
+        Assert.assertEquals(2, notes.size());
+        Assert.assertEquals(Note.class, notes.getType());
+        Assert.assertEquals(asList(DatabaseColumns.note_id, DatabaseColumns.note_count, DatabaseColumns.note_done, DatabaseColumns.note_text), notes.getColumns());
+        Assert.assertArrayEquals(new long[]{1, 2}, notes.getLongs(DatabaseColumns.note_id));
+        Assert.assertArrayEquals(new int[]{5, 7}, notes.getInts(DatabaseColumns.note_count));
+        Assert.assertTrue(Arrays.equals(new boolean[]{true, false}, notes.getBooleans(DatabaseColumns.note_done)));
+        Assert.assertArrayEquals(new Object[]{"first", "second"}, notes.getObjects(DatabaseColumns.note_text));
+    }
+
+    @Test
+    public void grows_the_arrays_to_fit_every_row() throws SQLException {
+        Object[][] rows = new Object[100][];
+        for (int i = 0; i < rows.length; i++) rows[i] = new Object[]{(long) i, i, "T", "note " + i};
+
+        ColumnarResult<Note> notes = build(FakeJdbc.resultSet(columns, rows));
+
+        Assert.assertEquals(100, notes.size());
+        long[] ids = notes.getLongs(DatabaseColumns.note_id);
+        Object[] texts = notes.getObjects(DatabaseColumns.note_text);
+        Assert.assertEquals(100, ids.length);
+        Assert.assertEquals(100, texts.length);
+        for (int i = 0; i < ids.length; i++) {
+            Assert.assertEquals(i, ids[i]);
+            Assert.assertEquals("note " + i, texts[i]);
+        }
+    }
+
+    @Test
+    public void nulls_leave_a_default_and_set_the_rows_bit() throws SQLException {
+        ColumnarResult<Note> notes = build(FakeJdbc.resultSet(columns,
+                new Object[]{1L, null, "T", null},
+                new Object[]{2L, 7, null, "second"}));
+
+        Assert.assertArrayEquals(new int[]{0, 7}, notes.getInts(DatabaseColumns.note_count));
+        Assert.assertTrue(notes.isNull(DatabaseColumns.note_count, 0));
+        Assert.assertFalse(notes.isNull(DatabaseColumns.note_count, 1));
+        Assert.assertTrue(notes.isNull(DatabaseColumns.note_done, 1));
+        Assert.assertNull(notes.getObjects(DatabaseColumns.note_text)[0]);
+        BitSet expected = new BitSet();
+        expected.set(0);
+        Assert.assertEquals(expected, notes.getNulls(DatabaseColumns.note_text));
+        Assert.assertTrue(notes.getNulls(DatabaseColumns.note_id).isEmpty());
+
+        notes.getNulls(DatabaseColumns.note_text).clear();
+        Assert.assertTrue(notes.isNull(DatabaseColumns.note_text, 0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void is_null_refuses_rows_past_the_end() throws SQLException {
+        build(FakeJdbc.resultSet(columns, new Object[]{1L, 5, "T", "first"})).isNull(DatabaseColumns.note_id, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refuses_an_array_of_another_type() throws SQLException {
+        build(FakeJdbc.resultSet(columns, new Object[]{1L, 5, "T", "first"})).getInts(DatabaseColumns.note_id);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refuses_columns_not_mapped() throws SQLException {
+        build(FakeJdbc.resultSet(columns, new Object[]{1L, 5, "T", "first"})).getLongs(DatabaseColumns.child_id);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refuses_a_class_mapping_a_column_twice() throws SQLException {
+        new ColumnarResult.Builder<>(Counted.class, FakeJdbc.resultSet(new String[]{"note_count"}));
+    }
+
+    private static ColumnarResult<Note> build(ResultSet rs) throws SQLException {
+        ColumnarResult.Builder<Note> builder = new ColumnarResult.Builder<>(Note.class, rs);
+        while (rs.next()) {
+            builder.add(rs);
+        }
+        return builder.build();
+    }
+}
@@ -0,0 +1,240 @@
+package no.notanumber.sosql;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.*;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+
+import static java.util.Arrays.asList;
+
+public class ConnectionPoolTest {
+
+    /**
+     * Hands out connections of the test's FakeJdbc. Named, as DriverManager only uses drivers it can load by name.
+     */
+    public static class FakeDriver implements Driver {
+        static volatile FakeJdbc fake;
+
+        @Override
+        public Connection connect(String url, Properties info) {
+            return acceptsURL(url) ? fake.connection() : null;
+        }
+
+        @Override
+        public boolean acceptsURL(String url) {
+            return url.startsWith("jdbc:fake:");
+        }
+
+        @Override
+        public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+            return new DriverPropertyInfo[0];
+        }
+
+        @Override
+        public int getMajorVersion() {
+            return 1;
+        }
+
+        @Override
+        public int getMinorVersion() {
+            return 0;
+        }
+
+        @Override
+        public boolean jdbcCompliant() {
+            return false;
+        }
+
+        @Override
+        public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+    }
+
+    private static final FakeDriver driver = new FakeDriver();
+    private static final AtomicInteger pools = new AtomicInteger();
+
+    FakeJdbc fake = new FakeJdbc();
+    ConnectionPool pool;
+
+    @BeforeClass
+    public static void registerDriver() throws SQLException {
+        DriverManager.registerDriver(driver);
+    }
+
+    @AfterClass
+    public static void deregisterDriver() throws SQLException {
+        DriverManager.deregisterDriver(driver);
+    }
+
+    @After
+    public void closePool() {
+        if (pool != null) pool.close();
+    }
+
+    @Test
+    public void a_thread_gets_the_connection_it_gave_back() throws SQLException {
+        pool(2);
+        pool.getConnection().close();
+        pool.getConnection().close();
+
+        Assert.assertEquals(1, fake.connections.size());
+        Assert.assertEquals(1, pool.getIdleConnections());
+        Assert.assertEquals(2, pool.getCheckouts());
+    }
+
+    @Test
+    public void a_connection_given_back_is_handed_to_the_thread_waiting() throws Exception {
+        pool(1);
+        Connection held = pool.getConnection();
+        AtomicReference<Connection> got = new AtomicReference<>();
+        Thread waiter = new Thread(() -> got.set(connection()));
+        waiter.start();
+        awaitWaiting(1);
+
+        held.close();
+        waiter.join(2000);
+
+        Assert.assertNotNull(got.get());
+        Assert.assertEquals(1, fake.connections.size());
+        Assert.assertEquals(1, pool.getActiveConnections());
+        Assert.assertEquals(0, pool.getWaitingThreads());
+    }
+
+    @Test
+    public void threads_get_connections_in_the_order_they_waited() throws Exception {
+        pool(1);
+        Connection held = pool.getConnection();
+        List<String> served = new CopyOnWriteArrayList<>();
+        Thread first = waiter("first", served);
+        first.start();
+        awaitWaiting(1);
+        Thread second = waiter("second", served);
+        second.start();
+        awaitWaiting(2);
+
+        held.close();
+        first.join(2000);
+        second.join(2000);
+
+        Assert.assertEquals(asList("first", "second"), served);
+    }
+
+    @Test
+    public void gives_up_waiting_after_the_checkout_timeout() throws SQLException {
+        pool(1);
+        pool.setCheckoutTimeoutMillis(50);
+        Connection held = pool.getConnection();
+        try {
+            pool.getConnection();
+            Assert.fail("Got a connection from a full pool");
+        } catch (SQLException e) {
+            Assert.assertEquals("08001", e.getSQLState());
+        }
+        Assert.assertEquals(1, pool.getTimeouts());
+        Assert.assertEquals(0, pool.getWaitingThreads());
+        held.close();
+    }
+
+    @Test
+    public void settings_changed_while_checked_out_are_reset_when_given_back() throws SQLException {
+        pool(1);
+        Connection connection = pool.getConnection();
+        connection.setAutoCommit(false);
+        connection.setReadOnly(true);
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        connection.close();
+
+        FakeJdbc.FakeConnection reset = fake.connections.get(0);
+        Assert.assertEquals(1, reset.rollbacks);
+        Assert.assertTrue(reset.autoCommit);
+        Assert.assertFalse(reset.readOnly);
+        Assert.assertEquals(Connection.TRANSACTION_READ_COMMITTED, reset.isolation);
+        Assert.assertFalse(reset.closed);
+    }
+
+    @Test
+    public void a_connection_given_back_can_not_be_used_or_change_the_next_users_settings() throws SQLException {
+        pool(1);
+        Connection old = pool.getConnection();
+        old.close();
+        Assert.assertTrue(old.isClosed());
+        try {
+            old.setReadOnly(true);
+            Assert.fail("Used a connection given back");
+        } catch (SQLException e) {
+            Assert.assertEquals("08003", e.getSQLState());
+        }
+
+        Connection next = pool.getConnection();
+        FakeJdbc.FakeConnection underlying = fake.connections.get(0);
+        underlying.readOnly = true; //as if set up so by the driver, not through the pool
+        next.close();
+
+        Assert.assertTrue(underlying.readOnly);
+    }
+
+    @Test
+    public void closing_wakes_threads_waiting_for_a_connection() throws Exception {
+        pool(1);
+        pool.setCheckoutTimeoutMillis(60_000);
+        Connection held = pool.getConnection();
+        AtomicReference<Exception> failed = new AtomicReference<>();
+        Thread waiter = new Thread(() -> {
+            try {
+                pool.getConnection();
+            } catch (SQLException e) {
+                failed.set(e);
+            }
+        });
+        waiter.start();
+        awaitWaiting(1);
+
+        pool.close();
+        waiter.join(2000);
+
+        Assert.assertFalse(waiter.isAlive());
+        Assert.assertNotNull(failed.get());
+        held.close();
+        Assert.assertTrue(fake.connections.get(0).closed);
+        Assert.assertEquals(0, pool.getTotalConnections());
+    }
+
+    private void pool(int maxConnections) {
+        FakeDriver.fake = fake;
+        pool = new ConnectionPool("test-" + pools.incrementAndGet(), "jdbc:fake:test", "user", "password", maxConnections);
+    }
+
+    private Connection connection() {
+        try {
+            return pool.getConnection();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private Thread waiter(String name, List<String> served) {
+        return new Thread(() -> {
+            try (Connection connection = pool.getConnection()) {
+                served.add(name);
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private void awaitWaiting(int threads) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (pool.getWaitingThreads() < threads && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        Assert.assertEquals(threads, pool.getWaitingThreads());
+    }
+}
@@ -0,0 +1,179 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+import static java.util.Arrays.asList;
+
+public class DBTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Child() {
+        }
+
+        Child(long center) {
+            this.child_center = center;
+        }
+    }
+
+    public static class Grownup {
+
+        @Column(columnName = "grownup_id")
+        public Long grownup_id;
+
+        @Column(columnName = "grownup_center")
+        public Long grownup_center;
+    }
+
+    public static class Center {
+
+        @Column(columnName = "center_id")
+        public Long center_id;
+
+        Center(long id) {
+            this.center_id = id;
+        }
+    }
+
+    FakeJdbc fake = new FakeJdbc();
+
+    @Test
+    public void insert_all_takes_keys_from_the_sequence_before_inserting() {
+        fake.answer("pg_get_serial_sequence", new String[]{"seq"}, new Object[]{"child_child_id_seq"})
+                .answer("nextval", new String[]{"nextval"}, new Object[]{11L}, new Object[]{12L}, new Object[]{13L});
+        Child a = new Child(1), b = new Child(2), c = new Child(3);
+        new DB(fake.connection()).insertAll(asList(a, b, c));
+
+        Assert.assertEquals(asList(11L, 12L, 13L), asList(a.child_id, b.child_id, c.child_id));
+        List<String> inserts = fake.executed("INSERT");
+        Assert.assertEquals(asList("INSERT INTO child(child_id, child_center) VALUES(?, ?), (?, ?), (?, ?)"), inserts);
+        Assert.assertEquals(asList(11L, 1L, 12L, 2L, 13L, 3L), fake.parameters.get(fake.executed.indexOf(inserts.get(0))));
+    }
+
+    @Test
+    public void insert_all_inserts_one_row_at_a_time_without_a_sequence() {
+        fake.answer("pg_get_serial_sequence", new String[]{"seq"}, new Object[]{null})
+                .answer("INSERT INTO grownup", new String[]{"grownup_id"}, new Object[]{21L});
+        Grownup a = new Grownup(), b = new Grownup();
+        new DB(fake.connection()).insertAll(asList(a, b));
+
+        Assert.assertEquals(asList("INSERT INTO grownup(grownup_center) VALUES(?) RETURNING grownup_id",
+                "INSERT INTO grownup(grownup_center) VALUES(?) RETURNING grownup_id"), fake.executed("INSERT"));
+        Assert.assertEquals(Long.valueOf(21), a.grownup_id);
+        Assert.assertTrue(fake.executed("nextval").isEmpty());
+    }
+
+    @Test
+    public void commit_tells_a_spy_on_a_shared_row_about_every_row_altering_it() {
+        Center center = new Center(31);
+        List<Object> told = new ArrayList<>();
+        BigBrother.Spy spy = told::add;
+        BigBrother.spyOn(center, spy);
+        Child a = new Child(31), b = new Child(31);
+        a.child_id = 1L;
+        b.child_id = 2L;
+        DB db = new DB(fake.connection());
+        db.update(a);
+        db.update(b);
+        db.commitAndReleaseConnection();
+
+        Assert.assertEquals(asList(a, b), told);
+        Assert.assertNotNull(spy);
+    }
+
+    @Test
+    public void select_longs_grows_the_array_to_fit_every_row() {
+        Object[][] rows = new Object[100][];
+        for (int i = 0; i < rows.length; i++) rows[i] = new Object[]{(long) i};
+        fake.answer("FROM child", new String[]{"child_center"}, rows);
+
+        long[] centers = new DB(fake.connection()).selectLongs(DatabaseColumns.child_center);
+
+        Assert.assertEquals(100, centers.length);
+        for (int i = 0; i < centers.length; i++) Assert.assertEquals(i, centers[i]);
+    }
+
+    @Test
+    public void select_ints_refuses_nulls_without_a_value_for_them() {
+        fake.answer("FROM note", new String[]{"note_count"}, new Object[]{3}, new Object[]{null});
+        try {
+            new DB(fake.connection()).selectInts(DatabaseColumns.note_count);
+            Assert.fail("Read a null as 0");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains("row 2"));
+        }
+    }
+
+    @Test
+    public void select_ints_gives_nulls_the_value_asked_for() {
+        fake.answer("FROM note", new String[]{"note_count"}, new Object[]{3}, new Object[]{null}, new Object[]{0});
+
+        int[] counts = new DB(fake.connection()).selectInts(DatabaseColumns.note_count, -1);
+
+        Assert.assertArrayEquals(new int[]{3, -1, 0}, counts);
+    }
+
+    @Test
+    public void select_doubles_reads_whole_numbers() {
+        fake.answer("FROM note", new String[]{"note_count"}, new Object[]{3}, new Object[]{4});
+
+        double[] counts = new DB(fake.connection()).selectDoubles(DatabaseColumns.note_count);
+
+        Assert.assertArrayEquals(new double[]{3, 4}, counts, 0);
+    }
+
+    @Test
+    public void primitive_selects_refuse_columns_they_would_truncate() {
+        DB db = new DB(fake.connection());
+        DatabaseColumn amount = new DatabaseColumn("note_amount", BigDecimal.class, "note");
+        List<Runnable> selects = asList(() -> db.selectLongs(amount), () -> db.selectDoubles(amount),
+                () -> db.selectInts(DatabaseColumns.child_center), () -> db.selectLongs(DatabaseColumns.note_text));
+        for (Runnable select : selects) {
+            try {
+                select.run();
+                Assert.fail("Read a column that does not fit");
+            } catch (IllegalArgumentException e) {
+                //refused
+            }
+        }
+        Assert.assertTrue(fake.executed.isEmpty());
+    }
+
+    @Test
+    public void streams_record_the_rows_read_when_closed() {
+        fake.answer("FROM child", new String[]{"child_id", "child_center"}, new Object[]{1L, 1L}, new Object[]{2L, 1L}, new Object[]{3L, 1L});
+        QueryStats.setEnabled(true);
+        try {
+            DB db = new DB(fake.connection());
+            try (Stream<Child> children = db.stream(Child.class)) {
+                Assert.assertEquals(2, children.limit(2).count());
+                Assert.assertFalse(stats(fake.executed("FROM child").get(0)).isPresent());
+            }
+            db.stream(Child.class).forEach(child -> {});
+
+            QueryStats stats = stats(fake.executed("FROM child").get(0)).get();
+            Assert.assertEquals(2, stats.getExecutions());
+            Assert.assertEquals(5, stats.getTotalRows());
+            Assert.assertEquals(3, stats.getMaxRows());
+        } finally {
+            QueryStats.setEnabled(false);
+        }
+    }
+
+    private static Optional<QueryStats> stats(String sql) {
+        return QueryStats.getAll().stream().filter(stats -> stats.getSql().equals(sql)).findFirst();
+    }
+}
@@ -1,14 +1,41 @@
 package no.notanumber.sosql;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
 import java.util.Arrays;
 import java.util.List;
 
 public class DatabaseColumns {
+    enum Kind { REMINDER, TODO }
+
     static DatabaseColumn col = new DatabaseColumn("pkey", Long.TYPE, "primary", ColumnType.PrimaryKey);
     static DatabaseColumn withFKey = new DatabaseColumn("fkey", Long.TYPE, "foreign", ColumnType.ForeignKey, "primary");
 
+    //children and grownups belong to a center, and are linked to each other through grownup_child
+    static DatabaseColumn center_id = new DatabaseColumn("center_id", Long.class, "center", ColumnType.PrimaryKey);
+    static DatabaseColumn child_id = new DatabaseColumn("child_id", Long.class, "child", ColumnType.PrimaryKey);
+    static DatabaseColumn child_center = new DatabaseColumn("child_center", Long.class, "child", ColumnType.ForeignKey, "center");
+    static DatabaseColumn grownup_id = new DatabaseColumn("grownup_id", Long.class, "grownup", ColumnType.PrimaryKey);
+    static DatabaseColumn grownup_center = new DatabaseColumn("grownup_center", Long.class, "grownup", ColumnType.ForeignKey, "center");
+    static DatabaseColumn gc_child = new DatabaseColumn("gc_child", Long.class, "grownup_child", ColumnType.ForeignKey, "child");
+    static DatabaseColumn gc_grownup = new DatabaseColumn("gc_grownup", Long.class, "grownup_child", ColumnType.ForeignKey, "grownup");
+    static DatabaseColumn room_id = new DatabaseColumn("room_id", Long.class, "room", ColumnType.PrimaryKey);
+    static DatabaseColumn room_center = new DatabaseColumn("room_center", Long.class, "room", ColumnType.ForeignKey, "center");
+    static DatabaseColumn island_id = new DatabaseColumn("island_id", Long.class, "island", ColumnType.PrimaryKey);
+
+    static DatabaseColumn note_id = new DatabaseColumn("note_id", Long.class, "note", ColumnType.PrimaryKey);
+    static DatabaseColumn note_text = new DatabaseColumn("note_text", String.class, "note");
+    static DatabaseColumn note_count = new DatabaseColumn("note_count", Integer.class, "note");
+    static DatabaseColumn note_done = new DatabaseColumn("note_done", Boolean.class, "note");
+    static DatabaseColumn note_data = new DatabaseColumn("note_data", byte[].class, "note");
+    static DatabaseColumn note_day = new DatabaseColumn("note_day", LocalDate.class, "note");
+    static DatabaseColumn note_written = new DatabaseColumn("note_written", LocalDateTime.class, "note");
+    static DatabaseColumn note_kind = new DatabaseColumn("note_kind", Kind.class, "note");
+
     @ColumnDefs
     public static List<DatabaseColumn> allColumns() {
-        return Arrays.asList(col, withFKey);
+        return Arrays.asList(col, withFKey, center_id, child_id, child_center, grownup_id, grownup_center, gc_child, gc_grownup,
+                room_id, room_center, island_id, note_id, note_text, note_count, note_done, note_data,
+                note_day, note_written, note_kind);
     }
 }
@@ -0,0 +1,139 @@
+package no.notanumber.sosql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+
+public class EntityCacheTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Child() {
+        }
+
+        Child(long id, long center) {
+            this.child_id = id;
+            this.child_center = center;
+        }
+    }
+
+    public static class ChildId {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        ChildId() {
+        }
+
+        ChildId(long id) {
+            this.child_id = id;
+        }
+    }
+
+    @Before
+    public void setUp() {
+        EntityCache.enable("child", 100, Duration.ofMinutes(1));
+    }
+
+    @After
+    public void tearDown() {
+        EntityCache.disable("child");
+    }
+
+    @Test
+    public void gives_copies_of_cached_rows() {
+        Child child = new Child(1, 5);
+        EntityCache.putAll(Child.class, singletonList(child), EntityCache.version(Child.class));
+        child.child_center = 6L;
+
+        Child cached = EntityCache.get(Child.class, 1);
+        Assert.assertNotSame(child, cached);
+        Assert.assertEquals(Long.valueOf(5), cached.child_center);
+        cached.child_center = 7L;
+        Assert.assertEquals(Long.valueOf(5), EntityCache.get(Child.class, 1L).child_center);
+        Assert.assertEquals(2, EntityCache.getHits("child"));
+    }
+
+    @Test
+    public void rows_loaded_before_a_change_are_not_kept_after_it() {
+        long loadedAt = EntityCache.version(Child.class);
+        BigBrother.inform(row(1), new Child(1, 6));
+        EntityCache.putAll(Child.class, singletonList(new Child(1, 5)), loadedAt);
+
+        Assert.assertNull(EntityCache.get(Child.class, 1L));
+        Assert.assertEquals(0, EntityCache.size("child"));
+    }
+
+    @Test
+    public void rows_loaded_after_a_change_are_kept() {
+        BigBrother.inform(row(1), new Child(1, 6));
+        EntityCache.putAll(Child.class, singletonList(new Child(1, 6)), EntityCache.version(Child.class));
+        Assert.assertEquals(Long.valueOf(6), EntityCache.get(Child.class, 1L).child_center);
+    }
+
+    @Test
+    public void rows_loaded_before_clear_are_not_kept() {
+        long loadedAt = EntityCache.version(Child.class);
+        EntityCache.clear();
+        EntityCache.putAll(Child.class, singletonList(new Child(1, 5)), loadedAt);
+        Assert.assertNull(EntityCache.get(Child.class, 1L));
+    }
+
+    @Test
+    public void a_change_evicts_the_row_for_every_class() {
+        EntityCache.putAll(Child.class, asList(new Child(1, 5), new Child(2, 5)), EntityCache.version(Child.class));
+        EntityCache.putAll(ChildId.class, singletonList(new ChildId(1)), EntityCache.version(ChildId.class));
+        BigBrother.inform(row(1), new ChildId(1));
+
+        Assert.assertNull(EntityCache.get(Child.class, 1L));
+        Assert.assertNull(EntityCache.get(ChildId.class, 1L));
+        Assert.assertNotNull(EntityCache.get(Child.class, 2L));
+        Assert.assertEquals(1, EntityCache.getInvalidations("child"));
+    }
+
+    @Test
+    public void expired_rows_are_evicted() {
+        EntityCache.enable("child", 100, Duration.ZERO);
+        EntityCache.putAll(Child.class, singletonList(new Child(1, 5)), EntityCache.version(Child.class));
+        Assert.assertNull(EntityCache.get(Child.class, 1L));
+        Assert.assertEquals(1, EntityCache.getEvictions("child"));
+    }
+
+    @Test
+    public void least_recently_used_rows_are_evicted_when_full() {
+        EntityCache.enable("child", 2, Duration.ofMinutes(1));
+        long version = EntityCache.version(Child.class);
+        EntityCache.putAll(Child.class, asList(new Child(1, 5), new Child(2, 5)), version);
+        EntityCache.get(Child.class, 1L);
+        EntityCache.putAll(Child.class, singletonList(new Child(3, 5)), version);
+
+        Assert.assertNotNull(EntityCache.get(Child.class, 1L));
+        Assert.assertNull(EntityCache.get(Child.class, 2L));
+        Assert.assertEquals(2, EntityCache.size("child"));
+    }
+
+    @Test
+    public void only_tables_enabled_are_cached() {
+        Assert.assertTrue(EntityCache.isCached(Child.class));
+        EntityCache.disable("child");
+        Assert.assertFalse(EntityCache.isCached(Child.class));
+        EntityCache.putAll(Child.class, singletonList(new Child(1, 5)), 0);
+        Assert.assertNull(EntityCache.get(Child.class, 1L));
+    }
+
+    private static BigBrother.RowIdentifier row(long id) {
+        return new BigBrother.RowIdentifier(DatabaseColumns.child_id, id);
+    }
+}
@@ -0,0 +1,190 @@
+package no.notanumber.sosql;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Just enough of JDBC to run DB without a database. Records the SQL run and the parameters given,
+ * and answers queries containing a given piece of SQL with the rows given for it.
+ */
+class FakeJdbc {
+
+    final List<String> executed = new CopyOnWriteArrayList<>();
+    final List<List<Object>> parameters = new CopyOnWriteArrayList<>();
+    final List<FakeConnection> connections = new CopyOnWriteArrayList<>();
+    private final List<Answer> answers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Queries containing sql return the rows. Answers given later win.
+     */
+    FakeJdbc answer(String sql, String[] columns, Object[]... rows) {
+        answers.add(0, new Answer(sql, columns, rows));
+        return this;
+    }
+
+    Connection connection() {
+        return new FakeConnection().proxy;
+    }
+
+    DataSource dataSource() {
+        return proxy(DataSource.class, (proxy, method, args) -> {
+            if (method.getName().equals("getConnection")) return connection();
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    List<String> executed(String containing) {
+        List<String> matching = new ArrayList<>();
+        executed.forEach(sql -> {
+            if (sql.contains(containing)) matching.add(sql);
+        });
+        return matching;
+    }
+
+    private ResultSet answerTo(String sql) {
+        for (Answer answer : answers) {
+            if (sql.contains(answer.sql)) return resultSet(answer.columns, answer.rows);
+        }
+        return resultSet(new String[0]);
+    }
+
+    private void run(String sql, List<Object> params) {
+        executed.add(sql);
+        parameters.add(new ArrayList<>(params));
+    }
+
+    class FakeConnection {
+        final Connection proxy;
+        boolean autoCommit = true;
+        boolean readOnly;
+        int isolation = Connection.TRANSACTION_READ_COMMITTED;
+        boolean closed;
+        int commits;
+        int rollbacks;
+
+        FakeConnection() {
+            connections.add(this);
+            this.proxy = FakeJdbc.proxy(Connection.class, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "prepareStatement": return statement((String) args[0]);
+                    case "createStatement": return statement(null);
+                    case "commit": commits++; return null;
+                    case "rollback": rollbacks++; return null;
+                    case "close": closed = true; return null;
+                    case "isClosed": return closed;
+                    case "setAutoCommit": autoCommit = (Boolean) args[0]; return null;
+                    case "getAutoCommit": return autoCommit;
+                    case "setReadOnly": readOnly = (Boolean) args[0]; return null;
+                    case "isReadOnly": return readOnly;
+                    case "setTransactionIsolation": isolation = (Integer) args[0]; return null;
+                    case "getTransactionIsolation": return isolation;
+                    case "isValid": return !closed;
+                    case "setSavepoint": return FakeJdbc.proxy(Savepoint.class, (p, m, a) -> defaultValue(m.getReturnType()));
+                    case "isWrapperFor": return false;
+                    case "toString": return "FakeConnection";
+                    case "hashCode": return System.identityHashCode(proxy);
+                    case "equals": return proxy == args[0];
+                    default: return defaultValue(method.getReturnType());
+                }
+            });
+        }
+    }
+
+    private PreparedStatement statement(String prepared) {
+        Map<Integer, Object> params = new TreeMap<>();
+        ResultSet[] generated = {resultSet(new String[0])};
+        return proxy(PreparedStatement.class, (proxy, method, args) -> {
+            String name = method.getName();
+            if (name.startsWith("set") && args != null && args.length == 2 && args[0] instanceof Integer) {
+                params.put((Integer) args[0], args[1]);
+                return null;
+            }
+            String sql = prepared != null ? prepared : args != null && args.length > 0 ? (String) args[0] : null;
+            switch (name) {
+                case "clearParameters": params.clear(); return null;
+                case "executeQuery":
+                    run(sql, new ArrayList<>(params.values()));
+                    return answerTo(sql);
+                case "execute":
+                case "executeUpdate":
+                    run(sql, new ArrayList<>(params.values()));
+                    generated[0] = answerTo(sql);
+                    return name.equals("execute") ? (Object) false : (Object) 1;
+                case "getGeneratedKeys": return generated[0];
+                case "getUpdateCount": return 1;
+                case "isClosed": return false;
+                default: return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    static ResultSet resultSet(String[] columns, Object[]... rows) {
+        List<String> names = Arrays.asList(columns);
+        ResultSetMetaData metaData = proxy(ResultSetMetaData.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getColumnCount": return columns.length;
+                case "getColumnName":
+                case "getColumnLabel": return columns[(Integer) args[0] - 1];
+                default: return defaultValue(method.getReturnType());
+            }
+        });
+        int[] row = {-1};
+        Object[] last = {null};
+        return proxy(ResultSet.class, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "next": return ++row[0] < rows.length;
+                case "getMetaData": return metaData;
+                case "findColumn":
+                    int index = names.indexOf(args[0]);
+                    if (index < 0) throw new SQLException("No column " + args[0]);
+                    return index + 1;
+                case "wasNull": return last[0] == null;
+                case "close": return null;
+            }
+            if (method.getName().startsWith("get") && args != null && args.length == 1) {
+                int index = args[0] instanceof Integer ? (Integer) args[0] : names.indexOf(args[0]) + 1;
+                last[0] = rows[row[0]][index - 1];
+                Class<?> type = method.getReturnType();
+                if (last[0] == null) return defaultValue(type);
+                if (type == String.class) return String.valueOf(last[0]);
+                if (type == int.class) return ((Number) last[0]).intValue();
+                if (type == long.class) return ((Number) last[0]).longValue();
+                if (type == double.class) return ((Number) last[0]).doubleValue();
+                return last[0];
+            }
+            return defaultValue(method.getReturnType());
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(FakeJdbc.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) return false;
+        if (type == int.class) return 0;
+        if (type == long.class) return 0L;
+        if (type == double.class) return 0d;
+        if (type == float.class) return 0f;
+        if (type == short.class) return (short) 0;
+        if (type == byte.class) return (byte) 0;
+        return null;
+    }
+
+    private static class Answer {
+        final String sql;
+        final String[] columns;
+        final Object[][] rows;
+
+        Answer(String sql, String[] columns, Object[][] rows) {
+            this.sql = sql;
+            this.columns = columns;
+            this.rows = rows;
+        }
+    }
+}
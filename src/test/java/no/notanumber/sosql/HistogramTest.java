@@ -0,0 +1,88 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HistogramTest {
+
+    Histogram histogram = new Histogram();
+
+    @Test
+    public void empty_histogram_is_all_zero() {
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getMean(), 0);
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void counts_sums_and_keeps_max_exactly() {
+        for (int i = 1; i <= 100; i++) histogram.record(i);
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(5050, histogram.getSum());
+        Assert.assertEquals(50.5, histogram.getMean(), 0);
+        Assert.assertEquals(100, histogram.getMax());
+    }
+
+    @Test
+    public void percentile_is_upper_bound_of_its_power_of_two_bucket() {
+        for (int i = 1; i <= 100; i++) histogram.record(i);
+        Assert.assertEquals(1, histogram.getPercentile(1));
+        Assert.assertEquals(63, histogram.getPercentile(50));
+        Assert.assertEquals(63, histogram.getPercentile(63));
+        Assert.assertEquals(100, histogram.getPercentile(64)); //64..127, but no value above 100 was seen
+    }
+
+    @Test
+    public void percentile_never_exceeds_max() {
+        for (int i = 1; i <= 100; i++) histogram.record(i);
+        Assert.assertEquals(100, histogram.getPercentile(99));
+        Assert.assertEquals(100, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void percentile_is_within_twice_the_exact_value() {
+        for (long value = 3; value < 1_000_000; value *= 3) {
+            Histogram one = new Histogram();
+            one.record(value);
+            one.record(value * 4);
+            long p50 = one.getPercentile(50);
+            Assert.assertTrue(p50 + " for " + value, p50 >= value && p50 < 2 * value);
+        }
+    }
+
+    @Test
+    public void zero_and_negative_values_count_as_zero() {
+        histogram.record(0);
+        histogram.record(-5);
+        Assert.assertEquals(2, histogram.getCount());
+        Assert.assertEquals(0, histogram.getSum());
+        Assert.assertEquals(0, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void records_largest_values() {
+        histogram.record(Long.MAX_VALUE);
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getMax());
+        Assert.assertEquals(Long.MAX_VALUE, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void records_from_many_threads_without_losing_counts() throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) histogram.record(i % 10);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) thread.join();
+        Assert.assertEquals(40000, histogram.getCount());
+        Assert.assertEquals(4 * 1000 * 45, histogram.getSum());
+        Assert.assertEquals(9, histogram.getMax());
+    }
+}
@@ -0,0 +1,141 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+
+public class IdentityMapTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Child() {
+        }
+
+        Child(long id, long center) {
+            this.child_id = id;
+            this.child_center = center;
+        }
+    }
+
+    //another view of the child table
+    public static class ChildId {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        ChildId() {
+        }
+
+        ChildId(long id) {
+            this.child_id = id;
+        }
+    }
+
+    public static class Center {
+
+        @Column(columnName = "center_id")
+        public Long center_id;
+
+        Center() {
+        }
+
+        Center(long id) {
+            this.center_id = id;
+        }
+    }
+
+    //maps two tables, so it is not kept, but writing it still changes rows of both
+    public static class ChildInCenter {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "center_id")
+        public Long center_id;
+
+        ChildInCenter() {
+        }
+
+        ChildInCenter(long child, long center) {
+            this.child_id = child;
+            this.center_id = center;
+        }
+    }
+
+    IdentityMap map = new IdentityMap();
+
+    @Test
+    public void same_row_selected_again_is_the_known_object() {
+        Child first = new Child(1, 5);
+        map.merge(Child.class, singletonList(first));
+        Assert.assertSame(first, map.merge(Child.class, asList(new Child(1, 5), new Child(2, 5))).get(0));
+        Assert.assertEquals(2, map.size());
+    }
+
+    @Test
+    public void finds_row_by_primary_key_given_as_int_or_long() {
+        Child child = new Child(1, 5);
+        map.merge(Child.class, singletonList(child));
+        Assert.assertSame(child, map.get(Child.class, 1L));
+        Assert.assertSame(child, map.get(Child.class, IdentityMap.primaryKeySearchedFor(Child.class, new Where(DatabaseColumns.child_id, "=", 1))));
+        Assert.assertNull(map.get(Child.class, 2L));
+        Assert.assertEquals(2, map.getHits());
+        Assert.assertEquals(1, map.getMisses());
+    }
+
+    @Test
+    public void keeps_one_object_per_class_for_a_row() {
+        Child child = new Child(1, 5);
+        ChildId id = new ChildId(1);
+        map.merge(Child.class, singletonList(child));
+        map.merge(ChildId.class, singletonList(id));
+        Assert.assertSame(child, map.get(Child.class, 1L));
+        Assert.assertSame(id, map.get(ChildId.class, 1L));
+    }
+
+    @Test
+    public void writing_a_row_as_one_class_forgets_the_other_classes() {
+        map.merge(Child.class, singletonList(new Child(1, 5)));
+        ChildId updated = new ChildId(1);
+        map.put(updated);
+        Assert.assertNull(map.get(Child.class, 1L));
+        Assert.assertSame(updated, map.get(ChildId.class, 1L));
+    }
+
+    @Test
+    public void deleting_a_row_as_one_class_forgets_the_other_classes() {
+        map.merge(Child.class, singletonList(new Child(1, 5)));
+        map.merge(ChildId.class, singletonList(new ChildId(1)));
+        map.remove(new ChildId(1));
+        Assert.assertNull(map.get(Child.class, 1L));
+        Assert.assertNull(map.get(ChildId.class, 1L));
+        Assert.assertEquals(0, map.size());
+    }
+
+    @Test
+    public void writing_a_class_of_two_tables_forgets_rows_of_both() {
+        map.merge(Child.class, singletonList(new Child(1, 5)));
+        map.merge(Center.class, singletonList(new Center(5)));
+        Assert.assertFalse(IdentityMap.canHold(ChildInCenter.class));
+        map.put(new ChildInCenter(1, 5));
+        Assert.assertNull(map.get(Child.class, 1L));
+        Assert.assertNull(map.get(Center.class, 5L));
+    }
+
+    @Test
+    public void only_primary_key_equal_to_a_value_is_a_primary_key_search() {
+        Assert.assertEquals(3L, IdentityMap.primaryKeySearchedFor(Child.class, new Where(DatabaseColumns.child_id, "=", 3L)));
+        Assert.assertNull(IdentityMap.primaryKeySearchedFor(Child.class, new Where(DatabaseColumns.child_id, ">", 3L)));
+        Assert.assertNull(IdentityMap.primaryKeySearchedFor(Child.class, new Where(DatabaseColumns.child_center, "=", 3L)));
+        Assert.assertNull(IdentityMap.primaryKeySearchedFor(Child.class, new Where(DatabaseColumns.child_id, "=", 3L), new Where(DatabaseColumns.child_center, "=", 1L)));
+        Assert.assertNull(IdentityMap.primaryKeySearchedFor(ChildInCenter.class, new Where(DatabaseColumns.child_id, "=", 3L)));
+    }
+}
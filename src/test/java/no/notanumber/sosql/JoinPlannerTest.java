@@ -0,0 +1,53 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static no.notanumber.sosql.DatabaseColumns.*;
+
+public class JoinPlannerTest {
+
+    @Test
+    public void joins_foreign_key_to_primary_key() {
+        Assert.assertEquals(set(new Join(col, withFKey)), JoinPlanner.findJoins(asList("primary", "foreign")));
+    }
+
+    @Test
+    public void joins_through_tables_not_asked_for() {
+        Assert.assertEquals(set(new Join(center_id, room_center), new Join(center_id, child_center)), JoinPlanner.findJoins(asList("room", "child")));
+    }
+
+    @Test
+    public void prefers_many_to_many_link_over_shared_parent() {
+        Assert.assertEquals(set(new Join(child_id, gc_child), new Join(grownup_id, gc_grownup)), JoinPlanner.findJoins(asList("child", "grownup")));
+    }
+
+    @Test
+    public void same_path_whichever_table_comes_first() {
+        Assert.assertEquals(JoinPlanner.findJoins(asList("room", "grownup")), JoinPlanner.findJoins(asList("grownup", "room")));
+    }
+
+    @Test
+    public void caches_joins_by_set_of_tables() {
+        Set<Join> first = JoinPlanner.findJoins(asList("child", "center", "room"));
+        Assert.assertSame(first, JoinPlanner.findJoins(asList("room", "child", "center", "room")));
+    }
+
+    @Test
+    public void one_table_needs_no_joins() {
+        Assert.assertTrue(JoinPlanner.findJoins(asList("child")).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refuses_tables_that_can_not_be_joined() {
+        JoinPlanner.findJoins(asList("island", "child"));
+    }
+
+    private static Set<Join> set(Join... joins) {
+        return new HashSet<>(asList(joins));
+    }
+}
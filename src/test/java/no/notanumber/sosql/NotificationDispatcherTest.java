@@ -0,0 +1,155 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+
+public class NotificationDispatcherTest {
+
+    public static class Center {
+
+        @Column(columnName = "center_id")
+        public Long center_id;
+
+        Center(long id) {
+            this.center_id = id;
+        }
+    }
+
+    List<Object> told = new CopyOnWriteArrayList<>();
+    BigBrother.Spy spy = told::add;
+    BigBrother.Spy other; //spies are held weakly
+
+    @Test
+    public void tells_about_every_suspect_when_not_coalescing() {
+        BigBrother.RowIdentifier row = spyOn(101);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(2, 10, 0);
+
+        dispatcher.dispatch(row, "first");
+        dispatcher.dispatch(row, "second");
+        dispatcher.shutdown(2000);
+
+        Assert.assertEquals(2, told.size());
+        Assert.assertTrue(told.containsAll(asList("first", "second")));
+        Assert.assertEquals(2, dispatcher.getDispatched());
+        Assert.assertEquals(0, dispatcher.getCoalesced());
+        Assert.assertEquals(0, dispatcher.getPending());
+    }
+
+    @Test
+    public void tells_once_about_the_last_suspect_of_a_row_altered_while_waiting() {
+        BigBrother.RowIdentifier row = spyOn(102);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(1, 10, 200);
+
+        dispatcher.dispatch(row, "first");
+        dispatcher.dispatch(row, "second");
+        dispatcher.dispatch(row, "third");
+        Assert.assertEquals(1, dispatcher.getPending());
+        dispatcher.shutdown(2000);
+
+        Assert.assertEquals(asList("third"), told);
+        Assert.assertEquals(1, dispatcher.getDispatched());
+        Assert.assertEquals(2, dispatcher.getCoalesced());
+    }
+
+    @Test
+    public void drops_notifications_when_too_many_are_pending() {
+        BigBrother.RowIdentifier first = spyOn(103);
+        BigBrother.RowIdentifier second = spyOn(104);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(1, 1, 200);
+
+        dispatcher.dispatch(first, "first");
+        dispatcher.dispatch(second, "second");
+        dispatcher.shutdown(2000);
+
+        Assert.assertEquals(asList("first"), told);
+        Assert.assertEquals(1, dispatcher.getDropped());
+    }
+
+    @Test
+    public void drops_notifications_when_too_many_are_pending_without_coalescing() throws InterruptedException {
+        BigBrother.RowIdentifier row = new BigBrother.RowIdentifier(DatabaseColumns.center_id, 105L);
+        Center center = new Center(105);
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        other = suspect -> {
+            blocked.countDown();
+            await(release);
+            told.add(suspect);
+        };
+        BigBrother.spyOn(center, other);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(1, 1, 0);
+
+        dispatcher.dispatch(row, "first");
+        Assert.assertTrue(blocked.await(2, TimeUnit.SECONDS));
+        dispatcher.dispatch(row, "second");
+        release.countDown();
+        dispatcher.shutdown(2000);
+
+        Assert.assertEquals(asList("first"), told);
+        Assert.assertEquals(1, dispatcher.getDropped());
+    }
+
+    @Test
+    public void counts_failing_spies_and_goes_on() {
+        BigBrother.RowIdentifier failing = new BigBrother.RowIdentifier(DatabaseColumns.center_id, 106L);
+        Center center = new Center(106);
+        other = suspect -> {
+            throw new IllegalStateException("spy failed");
+        };
+        BigBrother.spyOn(center, other);
+        BigBrother.RowIdentifier row = spyOn(107);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(1, 10, 0);
+
+        dispatcher.dispatch(failing, "first");
+        dispatcher.dispatch(row, "second");
+        dispatcher.shutdown(2000);
+
+        Assert.assertEquals(1, dispatcher.getFailed());
+        Assert.assertEquals(asList("second"), told);
+    }
+
+    @Test
+    public void big_brother_hands_spies_to_the_dispatcher_and_tells_observers_at_once() {
+        BigBrother.RowIdentifier row = spyOn(108);
+        List<Object> observed = new CopyOnWriteArrayList<>();
+        BigBrother.Observer observer = (altered, suspect) -> {
+            if (altered.equals(row)) observed.add(suspect);
+        };
+        BigBrother.addObserver(observer);
+        try {
+            BigBrother.dispatchAsynchronously(1, 10, 200);
+            Assert.assertTrue(BigBrother.isDispatchingAsynchronously());
+            BigBrother.inform(row, "first");
+            BigBrother.inform(row, "second");
+
+            Assert.assertEquals(asList("first", "second"), observed);
+            Assert.assertEquals(1, BigBrother.getPendingNotifications());
+            Assert.assertEquals(1, BigBrother.getCoalescedNotifications());
+        } finally {
+            BigBrother.dispatchSynchronously();
+            BigBrother.removeObserver(observer);
+        }
+        Assert.assertFalse(BigBrother.isDispatchingAsynchronously());
+        Assert.assertEquals(asList("second"), told);
+    }
+
+    private BigBrother.RowIdentifier spyOn(long centerId) {
+        BigBrother.spyOn(new Center(centerId), spy);
+        return new BigBrother.RowIdentifier(DatabaseColumns.center_id, centerId);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
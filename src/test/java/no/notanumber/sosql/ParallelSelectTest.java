@@ -0,0 +1,199 @@
+package no.notanumber.sosql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+
+public class ParallelSelectTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+    }
+
+    public static class Room {
+
+        @Column(columnName = "room_id")
+        public Long room_id;
+
+        @Column(columnName = "room_center")
+        public Long room_center;
+    }
+
+    FakeJdbc fake = new FakeJdbc();
+    DataSource previous;
+    ExecutorService executor = Executors.newCachedThreadPool();
+
+    @Before
+    public void useFake() {
+        previous = DBFunctions.getDataSource();
+        DBFunctions.setDataSource(fake.dataSource());
+        fake.answer("pg_export_snapshot", new String[]{"pg_export_snapshot"}, new Object[]{"00000003-1"})
+                .answer("FROM child", new String[]{"child_id", "child_center"}, new Object[]{1L, 1L}, new Object[]{2L, 1L})
+                .answer("FROM room", new String[]{"room_id", "room_center"}, new Object[]{7L, 1L});
+    }
+
+    @After
+    public void restore() {
+        executor.shutdownNow();
+        DBFunctions.setDataSource(previous);
+    }
+
+    @Test
+    public void selects_each_run_in_a_read_only_transaction_of_their_own() {
+        AsyncDB async = new AsyncDB(executor, 4);
+        ParallelSelect selects = new ParallelSelect(async);
+        ParallelSelect.Query<Child> children = selects.select(Child.class);
+        ParallelSelect.Query<Room> rooms = selects.select(Room.class);
+
+        ParallelSelect.Results results = selects.run();
+        awaitDone(async);
+
+        Assert.assertEquals(2, results.get(children).size());
+        Assert.assertEquals(1, results.get(rooms).size());
+        Assert.assertEquals(2, fake.connections.size());
+        fake.connections.forEach(connection -> Assert.assertTrue(connection.readOnly));
+    }
+
+    @Test
+    public void consistent_selects_import_the_leaders_snapshot() {
+        AsyncDB async = new AsyncDB(executor, 4);
+        ParallelSelect selects = new ParallelSelect(async).consistent();
+        ParallelSelect.Query<Child> children = selects.select(Child.class);
+        ParallelSelect.Query<Room> rooms = selects.select(Room.class);
+        ParallelSelect.Query<Child> more = selects.select(Child.class);
+
+        ParallelSelect.Results results = selects.run();
+        awaitDone(async);
+
+        Assert.assertEquals(2, results.get(children).size());
+        Assert.assertEquals(1, results.get(rooms).size());
+        Assert.assertEquals(2, results.get(more).size());
+        Assert.assertEquals(4, fake.connections.size());
+        Assert.assertEquals(1, fake.executed("pg_export_snapshot").size());
+        Assert.assertEquals(3, fake.executed("SET TRANSACTION SNAPSHOT '00000003-1'").size());
+        fake.connections.forEach(connection -> {
+            Assert.assertEquals(Connection.TRANSACTION_REPEATABLE_READ, connection.isolation);
+            Assert.assertTrue(connection.closed);
+        });
+        FakeJdbc.FakeConnection leader = fake.connections.get(0);
+        Assert.assertEquals(1, leader.rollbacks);
+    }
+
+    @Test
+    public void consistent_selects_run_on_at_most_one_connection_less_than_allowed() {
+        AsyncDB async = new AsyncDB(executor, 3);
+        ParallelSelect selects = new ParallelSelect(async).consistent();
+        for (int i = 0; i < 5; i++) selects.select(Child.class);
+
+        selects.run();
+        awaitDone(async);
+
+        Assert.assertEquals(3, fake.connections.size()); //the leader and two others
+        Assert.assertEquals(2, fake.executed("SET TRANSACTION SNAPSHOT").size());
+        Assert.assertEquals(5, fake.executed("FROM child").size());
+    }
+
+    @Test
+    public void the_leader_runs_consistent_selects_itself_when_there_is_no_room_for_more() {
+        AsyncDB async = new AsyncDB(executor, 1);
+        ParallelSelect selects = new ParallelSelect(async).consistent();
+        ParallelSelect.Query<Child> children = selects.select(Child.class);
+        ParallelSelect.Query<Room> rooms = selects.select(Room.class);
+
+        ParallelSelect.Results results = selects.run();
+        awaitDone(async);
+
+        Assert.assertEquals(2, results.get(children).size());
+        Assert.assertEquals(1, results.get(rooms).size());
+        Assert.assertEquals(1, fake.connections.size());
+        Assert.assertEquals(Connection.TRANSACTION_REPEATABLE_READ, fake.connections.get(0).isolation);
+        Assert.assertTrue(fake.executed("pg_export_snapshot").isEmpty());
+    }
+
+    @Test
+    public void gives_up_waiting_for_permits_when_the_time_is_up() throws InterruptedException {
+        AsyncDB async = new AsyncDB(executor, 3);
+        Assert.assertTrue(async.tryReserve(3, 0));
+        ParallelSelect selects = new ParallelSelect(async).consistent().timeout(Duration.ofMillis(100));
+        selects.select(Child.class);
+        selects.select(Room.class);
+
+        try {
+            selects.run();
+            Assert.fail("Ran selects without permits");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        Thread.sleep(2 * 100);
+        async.release(3);
+        Thread.sleep(2 * 100);
+
+        Assert.assertTrue(fake.connections.isEmpty());
+        awaitDone(async);
+    }
+
+    @Test
+    public void the_first_select_failing_fails_the_group() {
+        fake.answer("FROM room", new String[]{"room_id", "room_center"}, new Object[]{"seven", 1L});
+        AsyncDB async = new AsyncDB(executor, 4);
+        ParallelSelect selects = new ParallelSelect(async).consistent();
+        selects.select(Child.class);
+        selects.select(Room.class);
+
+        try {
+            selects.run();
+            Assert.fail("Mapped a row with a value of the wrong type");
+        } catch (RuntimeException e) {
+            //failed
+        }
+        awaitDone(async);
+    }
+
+    @Test
+    public void snapshot_selects_neither_use_nor_fill_the_shared_caches() {
+        EntityCache.enable("child", 100, Duration.ofMinutes(1));
+        QueryResultCache.enable(Child.class);
+        try {
+            for (int maxConcurrent : new int[]{1, 4}) {
+                AsyncDB async = new AsyncDB(executor, maxConcurrent);
+                ParallelSelect selects = new ParallelSelect(async).consistent();
+                ParallelSelect.Query<Child> children = selects.select(Child.class);
+                selects.select(Child.class, new Where(DatabaseColumns.child_id, "=", 1L));
+                selects.select(Room.class);
+
+                List<Child> rows = selects.run().get(children);
+                awaitDone(async);
+
+                Assert.assertEquals(2, rows.size());
+                Assert.assertEquals(0, EntityCache.size("child"));
+                Assert.assertEquals(0, QueryResultCache.size());
+            }
+            Assert.assertEquals(4, fake.executed("FROM child").size());
+        } finally {
+            EntityCache.disable("child");
+            QueryResultCache.disable(Child.class);
+            QueryResultCache.clear();
+        }
+    }
+
+    //results are handed back before the transactions are committed and their permits given back
+    private static void awaitDone(AsyncDB async) {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (async.getRunning() > 0 && System.currentTimeMillis() < deadline) Thread.yield();
+        Assert.assertEquals(0, async.getRunning());
+    }
+}
@@ -0,0 +1,135 @@
+package no.notanumber.sosql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+
+public class QueryResultCacheTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Child() {
+        }
+
+        Child(long id, long center) {
+            this.child_id = id;
+            this.child_center = center;
+        }
+    }
+
+    static final String SQL = "SELECT child_id, child_center FROM child WHERE child_center = ?";
+    static final List<Object> PARAMS = singletonList(5L);
+    static final Set<String> CHILD = Collections.singleton("child");
+
+    FakeJdbc fake = new FakeJdbc().answer("FROM child", new String[]{"child_id", "child_center"}, new Object[]{1L, 5L}, new Object[]{2L, 5L});
+    long invalidationsBefore = QueryResultCache.getInvalidations();
+
+    @Before
+    public void setUp() {
+        QueryResultCache.enable(Child.class);
+    }
+
+    @After
+    public void tearDown() {
+        QueryResultCache.disable(Child.class);
+        QueryResultCache.setMaxRows(1000);
+    }
+
+    @Test
+    public void writing_a_table_evicts_results_that_read_it() {
+        put(CHILD, QueryResultCache.version(CHILD));
+        QueryResultCache.invalidate(asList("center", "child"));
+        Assert.assertNull(QueryResultCache.get(Child.class, SQL, PARAMS));
+        Assert.assertEquals(1, QueryResultCache.getInvalidations() - invalidationsBefore);
+    }
+
+    @Test
+    public void writing_another_table_keeps_results() {
+        put(CHILD, QueryResultCache.version(CHILD));
+        QueryResultCache.invalidate(singletonList("room"));
+        Assert.assertEquals(2, QueryResultCache.get(Child.class, SQL, PARAMS).size());
+    }
+
+    @Test
+    public void results_loaded_before_a_write_are_not_kept_after_it() {
+        long loadedAt = QueryResultCache.version(new HashSet<>(asList("child", "center")));
+        QueryResultCache.invalidate(singletonList("center"));
+        put(new HashSet<>(asList("child", "center")), loadedAt);
+        Assert.assertNull(QueryResultCache.get(Child.class, SQL, PARAMS));
+    }
+
+    @Test
+    public void results_loaded_before_clear_are_not_kept() {
+        long loadedAt = QueryResultCache.version(CHILD);
+        QueryResultCache.clear();
+        put(CHILD, loadedAt);
+        Assert.assertNull(QueryResultCache.get(Child.class, SQL, PARAMS));
+    }
+
+    @Test
+    public void results_are_copied_in_and_out() {
+        Child child = new Child(1, 5);
+        QueryResultCache.put(Child.class, SQL, PARAMS, CHILD, singletonList(child), QueryResultCache.version(CHILD));
+        child.child_center = 6L;
+        Child cached = QueryResultCache.get(Child.class, SQL, PARAMS).get(0);
+        cached.child_center = 7L;
+        Assert.assertEquals(Long.valueOf(5), QueryResultCache.get(Child.class, SQL, PARAMS).get(0).child_center);
+    }
+
+    @Test
+    public void results_with_too_many_rows_are_not_kept() {
+        QueryResultCache.setMaxRows(1);
+        put(CHILD, QueryResultCache.version(CHILD));
+        Assert.assertNull(QueryResultCache.get(Child.class, SQL, PARAMS));
+    }
+
+    @Test
+    public void committing_a_write_evicts_results_read_from_the_table() {
+        Where center = new Where(DatabaseColumns.child_center, "=", 5L);
+        select(center);
+        select(center);
+        Assert.assertEquals(1, fake.executed("FROM child").size());
+
+        DB writer = new DB(fake.connection());
+        writer.update(new Child(1, 6));
+        select(center);
+        Assert.assertEquals("not committed yet", 1, fake.executed("FROM child").size());
+        writer.commitAndReleaseConnection();
+        select(center);
+        Assert.assertEquals(2, fake.executed("FROM child").size());
+    }
+
+    @Test
+    public void a_transaction_that_wrote_a_table_does_not_use_results_read_from_it() {
+        Where center = new Where(DatabaseColumns.child_center, "=", 5L);
+        select(center);
+        DB db = new DB(fake.connection());
+        db.update(new Child(1, 6));
+        db.select(Child.class, center);
+        Assert.assertEquals(2, fake.executed("FROM child").size());
+        db.rollback();
+    }
+
+    private void put(Set<String> tables, long loadedAt) {
+        QueryResultCache.put(Child.class, SQL, PARAMS, tables, asList(new Child(1, 5), new Child(2, 5)), loadedAt);
+    }
+
+    private List<Child> select(Where where) {
+        DB db = new DB(fake.connection());
+        List<Child> rows = db.select(Child.class, where);
+        db.commitAndReleaseConnection();
+        return rows;
+    }
+}
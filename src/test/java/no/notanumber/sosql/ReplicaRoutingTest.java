@@ -0,0 +1,204 @@
+package no.notanumber.sosql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.time.Duration;
+import java.util.List;
+
+public class ReplicaRoutingTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Child() {
+        }
+
+        Child(long id) {
+            this.child_id = id;
+            this.child_center = 1L;
+        }
+    }
+
+    FakeJdbc primary = new FakeJdbc();
+    FakeJdbc replica = new FakeJdbc();
+    DataSource previous;
+
+    @Before
+    public void useFakes() {
+        previous = DBFunctions.getDataSource();
+        DBFunctions.setDataSource(primary.dataSource());
+        DBFunctions.addReplica(replica.dataSource());
+    }
+
+    @After
+    public void restore() {
+        DBFunctions.setDataSource(previous);
+        DBFunctions.removeReplicas();
+        DBFunctions.setReadYourWritesMillis(0);
+        DBFunctions.setReadOnlyIsolation(-1);
+        Session.setCurrent(null);
+    }
+
+    @Test
+    public void read_only_dbs_read_from_a_replica_on_a_read_only_connection() {
+        DB.readOnly().select(Child.class);
+
+        Assert.assertTrue(primary.connections.isEmpty());
+        Assert.assertEquals(1, replica.connections.size());
+        Assert.assertTrue(replica.connections.get(0).readOnly);
+        Assert.assertFalse(replica.connections.get(0).autoCommit);
+        Assert.assertEquals(1, replica.executed("FROM child").size());
+    }
+
+    @Test
+    public void other_dbs_use_the_primary() {
+        DB db = new DB();
+        db.select(Child.class);
+        db.update(new Child(1));
+        db.commitAndReleaseConnection();
+
+        Assert.assertTrue(replica.connections.isEmpty());
+        Assert.assertEquals(1, primary.connections.size());
+        Assert.assertFalse(primary.connections.get(0).readOnly);
+    }
+
+    @Test
+    public void read_only_transactions_get_the_isolation_asked_for() {
+        DBFunctions.setReadOnlyIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        DB.readOnly().select(Child.class);
+
+        Assert.assertEquals(Connection.TRANSACTION_REPEATABLE_READ, replica.connections.get(0).isolation);
+    }
+
+    @Test
+    public void replicas_are_used_in_turn() {
+        FakeJdbc other = new FakeJdbc();
+        DBFunctions.addReplica(other.dataSource());
+        for (int i = 0; i < 4; i++) DB.readOnly().select(Child.class);
+
+        Assert.assertEquals(2, replica.connections.size());
+        Assert.assertEquals(2, other.connections.size());
+    }
+
+    @Test
+    public void a_session_reads_from_the_primary_after_committing_a_write() {
+        DBFunctions.setReadYourWritesMillis(60000);
+        write();
+
+        DB.readOnly().select(Child.class);
+
+        Assert.assertEquals(2, primary.connections.size());
+        Assert.assertTrue(primary.connections.get(1).readOnly);
+        Assert.assertTrue(replica.connections.isEmpty());
+    }
+
+    @Test
+    public void other_sessions_still_read_from_replicas() {
+        DBFunctions.setReadYourWritesMillis(60000);
+        write();
+
+        Session.setCurrent(new Session());
+        DB.readOnly().select(Child.class);
+
+        Assert.assertEquals(1, primary.connections.size());
+        Assert.assertEquals(1, replica.connections.size());
+    }
+
+    @Test
+    public void a_session_is_followed_to_other_threads() throws InterruptedException {
+        DBFunctions.setReadYourWritesMillis(60000);
+        Session session = new Session();
+        Session.setCurrent(session);
+        write();
+
+        Thread reader = new Thread(() -> {
+            Session.setCurrent(session);
+            DB.readOnly().select(Child.class);
+            DB elsewhere = DB.readOnly();
+            elsewhere.setSession(new Session());
+            elsewhere.select(Child.class);
+        });
+        reader.start();
+        reader.join();
+
+        Assert.assertEquals(2, primary.connections.size());
+        Assert.assertEquals(1, replica.connections.size());
+    }
+
+    @Test
+    public void reads_from_replicas_again_when_the_window_has_passed() throws InterruptedException {
+        DBFunctions.setReadYourWritesMillis(50);
+        write();
+        Thread.sleep(100);
+
+        DB.readOnly().select(Child.class);
+
+        Assert.assertEquals(1, primary.connections.size());
+        Assert.assertEquals(1, replica.connections.size());
+    }
+
+    @Test
+    public void reads_from_replicas_at_once_by_default() {
+        write();
+
+        DB.readOnly().select(Child.class);
+
+        Assert.assertEquals(1, replica.connections.size());
+    }
+
+    @Test
+    public void read_only_dbs_can_not_write() {
+        try {
+            DB.readOnly().update(new Child(1));
+            Assert.fail("Wrote with a read only DB");
+        } catch (RuntimeException e) {
+            //refused
+        }
+        Assert.assertTrue(primary.executed("UPDATE").isEmpty());
+        Assert.assertTrue(replica.executed("UPDATE").isEmpty());
+    }
+
+    private static void write() {
+        DB db = new DB();
+        db.update(new Child(1));
+        db.commitAndReleaseConnection();
+    }
+
+    @Test
+    public void read_only_dbs_do_not_use_the_shared_caches() {
+        String[] columns = {"child_id", "child_center"};
+        primary.answer("FROM child", columns, new Object[]{1L, 1L});
+        replica.answer("FROM child", columns, new Object[]{1L, 2L});
+        EntityCache.enable("child", 100, Duration.ofMinutes(1));
+        QueryResultCache.enable(Child.class);
+        try {
+            DB.readOnly().select(Child.class);
+            DB.readOnly().select(Child.class, new Where(DatabaseColumns.child_id, "=", 1L));
+            Assert.assertEquals(0, EntityCache.size("child"));
+            Assert.assertEquals(0, QueryResultCache.size());
+
+            DB db = new DB();
+            db.select(Child.class);
+            db.commitAndReleaseConnection();
+            List<Child> read = DB.readOnly().select(Child.class, new Where(DatabaseColumns.child_id, "=", 1L));
+
+            Assert.assertEquals(1, EntityCache.size("child"));
+            Assert.assertEquals(Long.valueOf(2), read.get(0).child_center);
+            Assert.assertEquals(3, replica.executed("FROM child").size());
+        } finally {
+            EntityCache.disable("child");
+            QueryResultCache.disable(Child.class);
+            QueryResultCache.clear();
+        }
+    }
+}
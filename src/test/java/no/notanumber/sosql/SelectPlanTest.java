@@ -0,0 +1,75 @@
+package no.notanumber.sosql;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+
+public class SelectPlanTest {
+
+    public static class Foreign {
+
+        @Column(columnName = "fkey")
+        public long fkey;
+    }
+
+    public static class Both {
+
+        @Column(columnName = "pkey")
+        public long pkey;
+
+        @Column(columnName = "fkey")
+        public long fkey;
+    }
+
+    @Test
+    public void same_shape_with_other_values_reuses_plan() {
+        SelectPlan first = SelectPlan.forClass(Foreign.class, new ArrayList<>(), new Where(DatabaseColumns.withFKey, "=", 1L));
+        SelectPlan second = SelectPlan.forClass(Foreign.class, new ArrayList<>(), new Where(DatabaseColumns.withFKey, "=", 2L));
+        Assert.assertSame(first, second);
+        Assert.assertEquals("SELECT DISTINCT fkey  FROM foreign WHERE fkey = ?  ", first.sql);
+        Assert.assertEquals(asList(2L), second.parameters(new Where(DatabaseColumns.withFKey, "=", 2L)));
+    }
+
+    @Test
+    public void operator_and_missing_value_are_part_of_the_shape() {
+        SelectPlan isNull = SelectPlan.forClass(Foreign.class, new ArrayList<>(), new Where(DatabaseColumns.withFKey, "IS NULL"));
+        SelectPlan equal = SelectPlan.forClass(Foreign.class, new ArrayList<>(), new Where(DatabaseColumns.withFKey, "=", 1L));
+        Assert.assertNotSame(isNull, equal);
+        Assert.assertEquals(new ArrayList<>(), isNull.parameters(new Where(DatabaseColumns.withFKey, "IS NULL")));
+    }
+
+    @Test
+    public void joins_tables_from_where_clause() {
+        SelectPlan plan = SelectPlan.forColumn(DatabaseColumns.withFKey, asList(new OrderBy(DatabaseColumns.withFKey)), new Where(DatabaseColumns.col, "=", 1L));
+        Assert.assertTrue(plan.sql.contains("fkey = pkey"));
+        Assert.assertTrue(plan.sql.endsWith("ORDER BY fkey ASC"));
+        Assert.assertEquals(2, plan.tables.size());
+    }
+
+    @Test
+    public void seeks_past_last_row_with_row_comparison_when_sorted_one_way() {
+        Both last = new Both();
+        last.pkey = 7;
+        last.fkey = 3;
+        List<OrderBy> orderBy = asList(new OrderBy(DatabaseColumns.withFKey), new OrderBy(DatabaseColumns.col));
+        SelectPlan plan = SelectPlan.forClass(Both.class, orderBy, true, true, new Where(DatabaseColumns.col, ">", 1L));
+        Assert.assertTrue(plan.sql.contains("WHERE pkey > ? AND fkey = pkey AND (fkey, pkey) > (?, ?)"));
+        Assert.assertTrue(plan.sql.endsWith("ORDER BY fkey ASC,pkey ASC LIMIT ? OFFSET ?"));
+        Assert.assertEquals(asList(1L, 3L, 7L, 10, 0L), plan.parameters(new Where[]{new Where(DatabaseColumns.col, ">", 1L)}, last, new Limit(10)));
+    }
+
+    @Test
+    public void seeks_past_last_row_column_by_column_when_sorted_both_ways() {
+        Both last = new Both();
+        last.pkey = 7;
+        last.fkey = 3;
+        List<OrderBy> orderBy = asList(new OrderBy(DatabaseColumns.withFKey, OrderBy.DESCENDING), new OrderBy(DatabaseColumns.col));
+        SelectPlan plan = SelectPlan.forClass(Both.class, orderBy, true, true);
+        Assert.assertTrue(plan.sql.contains("(fkey < ? OR (fkey = ? AND pkey > ?))"));
+        Assert.assertEquals(asList(3L, 3L, 7L, 5, 0L), plan.parameters(new Where[0], last, new Limit(5)));
+    }
+}
@@ -0,0 +1,195 @@
+package no.notanumber.sosql;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+
+public class TransactionalTest {
+
+    public static class Child {
+
+        @Column(columnName = "child_id")
+        public Long child_id;
+
+        @Column(columnName = "child_center")
+        public Long child_center;
+
+        Child() {
+        }
+
+        Child(long id) {
+            this.child_id = id;
+            this.child_center = 1L;
+        }
+    }
+
+    public static class Inner extends WithDatabase {
+
+        public void write(long id) {
+            getDB().update(new Child(id));
+        }
+
+        public void writeAndFail(long id) {
+            getDB().update(new Child(id));
+            throw new IllegalArgumentException("failed after writing");
+        }
+    }
+
+    public static class Middle extends WithDatabase {
+        Inner inner;
+
+        public void callAndFail(long id) {
+            inner.writeAndFail(id);
+        }
+    }
+
+    public static class Outer extends WithDatabase {
+        Inner inner;
+        Middle middle;
+
+        public void writeAndCall(long id) {
+            getDB().update(new Child(id));
+            inner.write(id + 1);
+        }
+
+        public void writeAndCatch(long id) {
+            getDB().update(new Child(id));
+            try {
+                inner.writeAndFail(id + 1);
+            } catch (IllegalArgumentException e) {
+                //carry on
+            }
+        }
+
+        public void writeAndCatchFromMiddle(long id) {
+            getDB().update(new Child(id));
+            try {
+                middle.callAndFail(id + 1);
+            } catch (IllegalArgumentException e) {
+                //carry on
+            }
+        }
+    }
+
+    FakeJdbc fake = new FakeJdbc();
+    DataSource previous;
+
+    @Before
+    public void useFake() {
+        previous = DBFunctions.getDataSource();
+        DBFunctions.setDataSource(fake.dataSource());
+    }
+
+    @After
+    public void restore() {
+        DBFunctions.setDataSource(previous);
+    }
+
+    @Test
+    public void required_calls_join_the_callers_transaction() {
+        Outer outer = outer(Propagation.REQUIRED);
+
+        outer.writeAndCall(1);
+
+        Assert.assertEquals(1, fake.connections.size());
+        Assert.assertEquals(1, fake.connections.get(0).commits);
+        Assert.assertEquals(2, fake.executed("UPDATE child").size());
+    }
+
+    @Test
+    public void a_failing_required_call_rolls_back_the_transaction_it_joined_even_when_caught() {
+        Outer outer = outer(Propagation.REQUIRED);
+
+        try {
+            outer.writeAndCatch(1);
+            Assert.fail("Committed the writes of a call that failed");
+        } catch (IllegalStateException e) {
+            //rolled back instead
+        }
+        FakeJdbc.FakeConnection connection = fake.connections.get(0);
+        Assert.assertEquals(1, fake.connections.size());
+        Assert.assertEquals(0, connection.commits);
+        Assert.assertEquals(1, connection.rollbacks);
+        Assert.assertTrue(connection.closed);
+        Assert.assertFalse(Transactional.currentDB().isPresent());
+    }
+
+    @Test
+    public void requires_new_commits_on_its_own_connection() {
+        Outer outer = outer(Propagation.REQUIRES_NEW);
+
+        outer.writeAndCall(1);
+
+        Assert.assertEquals(2, fake.connections.size());
+        fake.connections.forEach(connection -> {
+            Assert.assertEquals(1, connection.commits);
+            Assert.assertTrue(connection.closed);
+        });
+    }
+
+    @Test
+    public void a_failing_requires_new_call_rolls_back_alone() {
+        Outer outer = outer(Propagation.REQUIRES_NEW);
+
+        outer.writeAndCatch(1);
+
+        Assert.assertEquals(2, fake.connections.size());
+        FakeJdbc.FakeConnection outerConnection = fake.connections.get(0), innerConnection = fake.connections.get(1);
+        Assert.assertEquals(0, innerConnection.commits);
+        Assert.assertEquals(1, innerConnection.rollbacks);
+        Assert.assertEquals(1, outerConnection.commits);
+        Assert.assertEquals(0, outerConnection.rollbacks);
+    }
+
+    @Test
+    public void a_failing_nested_call_rolls_back_to_its_savepoint_and_the_rest_commits() {
+        Outer outer = outer(Propagation.NESTED);
+
+        outer.writeAndCatch(1);
+
+        FakeJdbc.FakeConnection connection = fake.connections.get(0);
+        Assert.assertEquals(1, fake.connections.size());
+        Assert.assertEquals(1, connection.rollbacks); //to the savepoint
+        Assert.assertEquals(1, connection.commits);
+    }
+
+    @Test
+    public void a_required_call_failing_inside_a_nested_call_is_undone_by_the_savepoint() {
+        Middle middle = new Middle();
+        middle.inner = Transactional.transactional(new Inner(), Propagation.REQUIRED);
+        Outer outer = new Outer();
+        outer.middle = Transactional.transactional(middle, Propagation.NESTED);
+
+        Transactional.transactional(outer).writeAndCatchFromMiddle(1);
+
+        FakeJdbc.FakeConnection connection = fake.connections.get(0);
+        Assert.assertEquals(1, connection.rollbacks); //to the savepoint
+        Assert.assertEquals(1, connection.commits);
+    }
+
+    @Test
+    public void a_transaction_marked_rollback_only_is_not_committed() {
+        DB db = new DB(fake.connection());
+        db.update(new Child(1));
+        db.setRollbackOnly();
+        Assert.assertTrue(db.isRollbackOnly());
+
+        try {
+            db.commitAndReleaseConnection();
+            Assert.fail("Committed a transaction marked rollback only");
+        } catch (IllegalStateException e) {
+            //rolled back instead
+        }
+        Assert.assertEquals(0, fake.connections.get(0).commits);
+        Assert.assertEquals(1, fake.connections.get(0).rollbacks);
+    }
+
+    private static Outer outer(Propagation inner) {
+        Outer outer = new Outer();
+        outer.inner = Transactional.transactional(new Inner(), inner);
+        return Transactional.transactional(outer);
+    }
+}